@@ -54,10 +54,11 @@ public class SneerSqliteDatabase implements Closeable, Database {
 	@Override
 	public long insert(String tableName, Map<String, Object> values) throws UniqueConstraintViolated {
 		try {
-			return sqlite.insert(tableName, null, toContentValues(values));
+			return sqlite.insertOrThrow(tableName, null, toContentValues(values));
 		} catch (SQLiteConstraintException e) {
 			// android.database.sqlite.SQLiteConstraintException: columns author, original_id are not unique (code 19)
-			if (e.getMessage().contains(" not unique "))
+			// Newer SQLite: UNIQUE constraint failed: tuple.uniqueness_key (code 2067)
+			if (e.getMessage().contains(" not unique ") || e.getMessage().contains("UNIQUE constraint"))
 				throw new UniqueConstraintViolated(e.getMessage(), e);
 			throw e;
 		}
@@ -82,6 +83,30 @@ public class SneerSqliteDatabase implements Closeable, Database {
 		}
 	}
 
+	@Override
+	public void execute(String sql, List<Object> params) {
+		sqlite.execSQL(sql, params.toArray());
+	}
+
+
+	@Override
+	public void beginTransaction() {
+		sqlite.beginTransaction();
+	}
+
+
+	@Override
+	public void setTransactionSuccessful() {
+		sqlite.setTransactionSuccessful();
+	}
+
+
+	@Override
+	public void endTransaction() {
+		sqlite.endTransaction();
+	}
+
+
 	private SQLiteDatabase.CursorFactory cursorFactoryFor(final List<Object> args) {
 		return new SQLiteDatabase.CursorFactory() {
 			@Override
@@ -97,8 +122,12 @@ public class SneerSqliteDatabase implements Closeable, Database {
         for (Object arg : args) {
             if (arg == null)
                 query.bindNull(i);
-            else if (arg instanceof Long)
-                query.bindLong(i, (Long) arg);
+            else if (arg instanceof Double || arg instanceof Float)
+                query.bindDouble(i, ((Number) arg).doubleValue());
+            else if (arg instanceof Number)
+                query.bindLong(i, ((Number) arg).longValue());
+            else if (arg instanceof Boolean)
+                query.bindLong(i, (Boolean) arg ? 1 : 0);
             else if (arg instanceof byte[])
                 query.bindBlob(i, (byte[]) arg);
             else
@@ -117,8 +146,11 @@ public class SneerSqliteDatabase implements Closeable, Database {
 
 
 	private void accumulate(ContentValues cv, String key, Object value) {
-		if (value instanceof String) cv.put(key, (String)value);
-        else if (value instanceof Long) cv.put(key, (Long)value);
+		if (value == null) cv.putNull(key);
+		else if (value instanceof String) cv.put(key, (String)value);
+        else if (value instanceof Double || value instanceof Float) cv.put(key, ((Number)value).doubleValue());
+        else if (value instanceof Number) cv.put(key, ((Number)value).longValue());
+        else if (value instanceof Boolean) cv.put(key, (Boolean)value);
         else cv.put(key, (byte[])value);
 	}
 
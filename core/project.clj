@@ -54,7 +54,7 @@
                     sneer.impl.CoreLoader
                     sneer.main]
               :uberjar-exclusions [#"META-INF/DUMMY.SF"
-                                   #"^org/(apache|bouncycastle|json|msgpack)"
+                                   #"^org/(apache|bouncycastle|json)"
                                    #"^lib/commons-codec"
                                    #"^cljs"
                                    #"^clojure/test/"
@@ -68,7 +68,17 @@
         (db-insert [_ table row]
           (.insert db (name table) row))
         (db-query [_ sql-and-params]
-          (.query db (first sql-and-params) (subvec sql-and-params 1)))))
+          (.query db (first sql-and-params) (subvec sql-and-params 1)))
+        (db-execute [_ sql-and-params]
+          (.execute db (first sql-and-params) (subvec sql-and-params 1)))
+        (db-transaction [_ f]
+          (.beginTransaction db)
+          (try
+            (let [result (f)]
+              (.setTransactionSuccessful db)
+              result)
+            (finally
+              (.endTransaction db))))))
     db))
 
 (defn new-sneer-admin-over-db [db]
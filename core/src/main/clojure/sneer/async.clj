@@ -21,8 +21,8 @@
 (defn dropping-tap [mult]
   (tap mult (dropping-chan)))
 
-(defn sliding-tap [mult]
-  (tap mult (sliding-chan)))
+(defn sliding-tap [mult & [n]]
+  (tap mult (sliding-chan n)))
 
 (defn connection [in out]
   [in out])
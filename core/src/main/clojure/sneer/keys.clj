@@ -1,16 +1,28 @@
 (ns sneer.keys
-  (:import [sneer.crypto.impl KeysImpl]))
+  (:import [sneer.crypto.impl KeysImpl]
+           [java.lang.ref WeakReference]
+           [java.util Collections Map WeakHashMap]))
 
 (def ^:private ^KeysImpl keys-impl (KeysImpl.))
 
+(def ^:private ^Map interned
+  "Puks in use, so that equal ones share a single instance. Weak, so that
+   puks no longer referenced are collected."
+  (Collections/synchronizedMap (WeakHashMap.)))
+
+(defn- intern-puk [puk]
+  (or (some-> ^WeakReference (.get interned puk) .get)
+      (do (.put interned puk (WeakReference. puk))
+          puk)))
+
 (defn create-prik []
   (.createPrivateKey keys-impl))
 
 (defn create-puk [^bytes rep]
-  (.createPublicKey keys-impl rep))
+  (intern-puk (.createPublicKey keys-impl rep)))
 
 (defn from-hex [^String hex]
-  (.createPublicKey keys-impl hex))
+  (intern-puk (.createPublicKey keys-impl hex)))
 
 (defn ->puk [^String rep]
   (create-puk (.getBytes rep)))
@@ -1,6 +1,7 @@
 (ns sneer.networking.client
-  (:require [clojure.core.async :refer [>! <! map> timeout alt! chan]]
-            [sneer.async :refer [go-while-let dropping-chan IMMEDIATELY]]
+  (:require [clojure.core.async :refer [>! <! map> timeout alts! chan]]
+            [sneer.async :refer [go-while-let go-loop-trace dropping-chan]]
+            [sneer.networking.fragments :as fragments]
             [clojure.core.match :refer [match]])
   (:import [sneer.commons SystemReport]))
 
@@ -23,44 +24,176 @@
   (swap! (:packets-in-by-follower client) assoc-new follower-puk packets-in)
   packets-in)
 
-(defn connect-to-follower [client follower-puk tuples-out & [resend-timeout-fn]]
+(def ^:private window-size 8)
+
+(def ^:private initial-rto-millis 3000)
+(def ^:private min-rto-millis 200)
+(def ^:private max-rto-millis 60000)
+
+(defn- now []
+  (System/currentTimeMillis))
+
+(defn- signature [tuple]
+  [(author-of tuple) (id-of tuple)])
+
+(defn- clamp-rto [millis]
+  (-> millis (max min-rto-millis) (min max-rto-millis) long))
+
+(defn- rtt-sampled
+  "Smoothed round trip time and variation, as in TCP (RFC 6298)."
+  [{:keys [srtt rttvar] :as rtt} sample]
+  (let [[srtt rttvar] (if srtt
+                        [(+ (* 7/8 srtt) (* 1/8 sample))
+                         (+ (* 3/4 rttvar) (* 1/4 (Math/abs (double (- srtt sample)))))]
+                        [sample (/ sample 2)])]
+    {:srtt srtt
+     :rttvar rttvar
+     :rto (clamp-rto (+ srtt (* 4 rttvar)))}))
+
+(defn- backed-off [rtt]
+  (update rtt :rto #(clamp-rto (* 2 %))))
+
+(defn- ->send-packet [follower-puk {:keys [tuple prev]}]
+  (cond-> {:send tuple :to follower-puk}
+    prev (assoc :prev prev)))
+
+(defn- unacked [window]
+  (remove :acked? window))
+
+(defn- acked
+  "Marks the tuple with id as acked, sampling its round trip time unless it
+   was resent (Karn's algorithm)."
+  [{:keys [window] :as state} id]
+  (if-some [i (first (keep-indexed #(when (and (= id (id-of (:tuple %2))) (not (:acked? %2))) %1) window))]
+    (let [{:keys [sent-at resent?]} (window i)]
+      (cond-> (assoc-in state [:window i :acked?] true)
+        (not resent?) (update :rtt rtt-sampled (- (now) sent-at))))
+    state))
+
+(defn- pop-acked
+  "Removes the acked tuples at the head of the window, so that acks are
+   delivered in the order tuples were taken."
+  [{:keys [window] :as state}]
+  (let [[delivered remaining] (split-with :acked? window)]
+    [(assoc state :window (vec remaining)) delivered]))
+
+(defn- ->entries
+  "The window entries for a tuple taken from tuples-out: one for the tuple
+   itself or one per fragment, in which case only the last one delivers the
+   tuple to ack-ch."
+  [tuple ack-ch]
+  (let [fragments (fragments/fragmented tuple)
+        last-index (dec (count fragments))]
+    (map-indexed (fn [i fragment]
+                   (cond-> {:tuple fragment :ack-ch ack-ch}
+                     (= i last-index) (assoc :delivers tuple)))
+                 fragments)))
+
+(defn- admitted
+  "Moves entries from the backlog into the window while it has room. Returns
+   [state admitted-entries], to be sent."
+  [{:keys [window backlog paused?] :as state}]
+  (if (or paused? (empty? backlog) (>= (count window) window-size))
+    [state nil]
+    (loop [{:keys [window backlog prev] :as state} state
+           admitted []]
+      (if (or (empty? backlog) (>= (count window) window-size))
+        [state admitted]
+        (let [entry (assoc (first backlog) :prev prev :sent-at (now))]
+          (recur (assoc state
+                   :window (conj window entry)
+                   :backlog (rest backlog)
+                   :prev (signature (:tuple entry)))
+                 (conj admitted entry)))))))
+
+(defn- resent [state]
+  (update state :window (partial mapv #(if (:acked? %) % (assoc % :resent? true)))))
+
+(defn- with-timer
+  "Sets the resend timer if there are unacked tuples to resend. Otherwise
+   there is nothing to time."
+  [{:keys [window paused? rtt] :as state} resend-timeout-fn]
+  (assoc state :timer (if (or paused? (empty? (unacked window)))
+                        NEVER
+                        (resend-timeout-fn (:rto rtt)))))
+
+(defn connect-to-follower
+  "Sends the [tuple ack-ch] pairs taken from tuples-out to the follower
+   through the server, with up to window-size tuples awaiting acks. The
+   server acks each tuple. Acks are put onto each ack-ch in the order the
+   tuples were taken. Unacked tuples are resent after a timeout that adapts
+   to the round trip time. A :nak (the server's queue for the follower is
+   full) stops sending and resending until a :cts. Each tuple carries the
+   signature of the one sent before it (:prev), so that the server can keep
+   them in order. Tuples too large for a datagram are sent as fragments,
+   each one taking its place in the window like a tuple. When tuples-out is
+   closed, the tuples already in the window are still sent until acked, then
+   the returned channel closes."
+  [client follower-puk tuples-out & [resend-timeout-fn]]
   (println "connect-to-follower" (:own-puk client) follower-puk)
   (assert (not= follower-puk (:own-puk client)))
-  (let [follower-packets-in (accept-packets-from! client follower-puk (dropping-chan))
+  (let [follower-packets-in (accept-packets-from! client follower-puk (dropping-chan (* 2 window-size)))
         packets-out (:packets-out client)
-        resend-timeout-fn (or resend-timeout-fn #(timeout 5000))]
-    (go-while-let [[tuple ack-ch] (<! tuples-out)]
-      (SystemReport/updateReport
-        (str "tuples/last-to-send/" follower-puk)
-        tuple)
-
-      (loop [resend-timeout IMMEDIATELY]
-        (alt!
-          follower-packets-in
-          ([packet-in]
-           (match packet-in
-             {:ack id}
-             (if (= id (id-of tuple))
-               (do
-                 (>! ack-ch tuple)
-                 :break)
-               (recur resend-timeout))
-
-             {:nak id}
-             (recur (if (= id (id-of tuple)) NEVER resend-timeout))
-
-             {:cts _}
-             (do
-               (>! packets-out {:ack follower-puk})
-               (recur IMMEDIATELY))
-
-             :else
-             (recur resend-timeout)))
-
-          resend-timeout
-          ([_]
-            (>! packets-out {:send tuple :to follower-puk})
-            (recur (resend-timeout-fn))))))))
+        resend-timeout-fn (or resend-timeout-fn timeout)]
+    (go-loop-trace [state {:window [] :backlog () :prev nil :paused? false :closed? false :timer NEVER :rtt {:rto initial-rto-millis}}]
+      (let [[state admitted] (admitted state)
+            _ (doseq [entry admitted]
+                (>! packets-out (->send-packet follower-puk entry)))
+            {:keys [window backlog paused? closed? timer] :as state} (cond-> state
+                                                                        (and (seq admitted) (identical? (:timer state) NEVER))
+                                                                        (with-timer resend-timeout-fn))
+            accepting? (and (not paused?) (not closed?) (empty? backlog) (< (count window) window-size))]
+        (when-not (and closed? (empty? window))
+          (let [[value port] (alts! (cond-> [follower-packets-in timer] accepting? (conj tuples-out))
+                                    :priority true)]
+            (condp identical? port
+              tuples-out
+              (if-some [[tuple ack-ch] value]
+                (do
+                  (SystemReport/updateReport
+                    (str "tuples/last-to-send/" follower-puk)
+                    tuple)
+                  (recur (assoc state :backlog (->entries tuple ack-ch))))
+                (recur (assoc state :closed? true)))
+
+              follower-packets-in
+              (match value
+                {:ack id}
+                (let [state' (acked state id)
+                      [state' delivered] (pop-acked state')]
+                  (doseq [{:keys [delivers ack-ch]} delivered]
+                    (when delivers
+                      (>! ack-ch delivers)))
+                  (recur (if (= state' state)
+                           state
+                           (with-timer state' resend-timeout-fn))))
+
+                {:nak id}
+                (recur (if (some #(= id (id-of (:tuple %))) (unacked window))
+                         (assoc state :paused? true :timer NEVER)
+                         state))
+
+                {:cts _}
+                (do
+                  (>! packets-out {:ack follower-puk})
+                  (doseq [entry (unacked window)]
+                    (>! packets-out (->send-packet follower-puk entry)))
+                  (recur (-> state
+                             (assoc :paused? false)
+                             resent
+                             (with-timer resend-timeout-fn))))
+
+                :else
+                (recur state))
+
+              timer
+              (do
+                (doseq [entry (unacked window)]
+                  (>! packets-out (->send-packet follower-puk entry)))
+                (recur (-> state
+                           resent
+                           (update :rtt backed-off)
+                           (with-timer resend-timeout-fn)))))))))))
 
 (defn start-client [own-puk packets-in packets-out tuples-received]
   (let [packets-in-by-follower (atom {})
@@ -68,16 +201,24 @@
                              (SystemReport/updateReport "network/last-packet-out" %)
                              (assoc % :from own-puk))
                           packets-out)
-        last-tuple (atom {})]
+        last-tuple (atom {})
+        reassembly (atom fragments/reassembly)]
     
     (go-while-let [packet (<! packets-in)]
       (SystemReport/updateReport "network/last-packet-in" packet)
       (match packet
         {:send tuple}
-        (do (when-not (= @last-tuple tuple)                 ; Avoid wasting time trying to store redundant tuples.
+        (if (fragments/fragment? tuple)
+          (when-some [[state whole] (fragments/reassembled @reassembly tuple)] ; Not acked if there is no room for it yet.
+            (reset! reassembly state)
+            (when whole
+              (>! tuples-received whole))
+            (>! packets-out (->ack tuple)))
+          (do
+            (when-not (= @last-tuple tuple)                   ; Avoid wasting time trying to store redundant tuples.
               (reset! last-tuple tuple)
               (>! tuples-received tuple))
-            (>! packets-out (->ack tuple)))
+            (>! packets-out (->ack tuple))))
 
         (:or {:for follower} {:cts follower})
         (if-some [follower-in (get @packets-in-by-follower follower)]
@@ -0,0 +1,162 @@
+(ns sneer.networking.fragments
+  (:require [sneer.serialization :as serialization])
+  (:import [java.util Arrays]
+           [java.io ByteArrayOutputStream]))
+
+(def max-unfragmented-size
+  "Serialized tuples up to this size fit in a datagram along with the packet around them."
+  1000)
+
+(def ^:private fragment-size 768)
+
+(def max-reassembly-bytes
+  "Memory reserved for incomplete tuples at the receiver. Larger tuples are dropped."
+  (* 4 1024 1024))
+
+(def ^:private stale-millis
+  "Incomplete tuples not added to for this long are taken as abandoned by
+   their senders, which resend unacked fragments much more often."
+  (* 5 60 1000))
+
+(def ^:private remembered-completions 64)
+
+(defn fragment? [tuple]
+  (contains? tuple "fragment"))
+
+(defn- ->fragment [author id n i ^bytes bytes]
+  (let [from (* i fragment-size)]
+    {"author" author
+     "id" [id i]
+     "fragment-count" n
+     "fragment" (Arrays/copyOfRange bytes (int from) (int (min (alength bytes) (+ from fragment-size))))}))
+
+(defn fragmented
+  "Returns a vector with the tuple itself if it fits in a datagram. Otherwise
+   returns the fragments of its serialized form, numbered in their \"id\", to
+   be sent and acked as tuples of their own."
+  [tuple]
+  (if (<= (serialization/serialized-size tuple :json) max-unfragmented-size) ; Datagrams are JSON until the peer is known to read MessagePack.
+    [tuple]
+    (let [^bytes bytes (serialization/serialize tuple)
+          n (quot (+ (alength bytes) (dec fragment-size)) fragment-size)]
+      (mapv #(->fragment (get tuple "author") (get tuple "id") n % bytes) (range n)))))
+
+(defn- fragment-key [fragment]
+  (let [id (get fragment "id")]
+    [(get fragment "author") (if (vector? id) (first id) id)]))
+
+(defn- fragment-index [fragment]
+  (second (get fragment "id")))
+
+(def ^:private byte-array-class (Class/forName "[B"))
+
+(defn- malformation
+  "Why fragment, sent by a peer, cannot be reassembled, or nil if it can."
+  [fragment]
+  (let [id (get fragment "id")
+        n (get fragment "fragment-count")
+        bytes (get fragment "fragment")]
+    (cond
+      (not (and (vector? id) (= 2 (count id)))) "id is not [tuple-id index]"
+      (not (integer? n))                        "fragment-count is not an integer"
+      (not (pos? n))                            "fragment-count is not positive"
+      (not (integer? (second id)))              "index is not an integer"
+      (not (< -1 (second id) n))                "index is out of range"
+      (not (instance? byte-array-class bytes))  "fragment is not a byte array"
+      (> (alength ^bytes bytes) fragment-size)  "fragment is too large")))
+
+(defn- deserialized [k ^bytes bytes]
+  (try
+    (serialization/deserialize bytes)
+    (catch Exception e
+      (println "Dropping tuple that could not be reassembled:" k (.getMessage e)))))
+
+(defn- joined ^bytes [fragments-by-index]
+  (let [out (ByteArrayOutputStream.)]
+    (doseq [^bytes bytes (vals (sort fragments-by-index))]
+      (.write out bytes 0 (alength bytes)))
+    (.toByteArray out)))
+
+(defn- remember-completion [completed k]
+  (let [completed (conj completed k)]
+    (if (> (count completed) remembered-completions)
+      (subvec completed 1)
+      completed)))
+
+(defn- reserved-size [n]
+  (* n fragment-size))
+
+(defn- without-stale
+  "Drops the incomplete tuples abandoned by their senders (see stale-millis)."
+  [{:keys [incomplete] :as state} now]
+  (reduce-kv (fn [state k {:keys [count touched-at]}]
+               (if (> (- now touched-at) stale-millis)
+                 (do
+                   (println "Dropping incomplete tuple abandoned by its sender:" k)
+                   (-> state
+                       (update :incomplete dissoc k)
+                       (update :size - (reserved-size count))))
+                 state))
+             state
+             incomplete))
+
+(defn- admitted
+  "The state with room reserved for a tuple of n fragments, or nil if there is
+   no room until the tuples being reassembled are complete."
+  [state n now]
+  (let [fits? #(<= (+ (:size %) (reserved-size n)) max-reassembly-bytes)]
+    (if (fits? state)
+      state
+      (let [state (without-stale state now)]
+        (when (fits? state)
+          state)))))
+
+(defn reassembled
+  "Adds fragment to the reassembly state. Returns [state tuple], where tuple is
+   the original tuple if fragment was the last one missing, otherwise nil.
+   Fragments resent after their tuple was reassembled are ignored, as are
+   malformed ones. Returns nil, and the fragment must not be acked, when it
+   starts a tuple there is no room for yet. Its sender will resend it, and
+   the router will meanwhile deliver fragments of the tuples in progress."
+  [state fragment & [now]]
+  (let [now (or now (System/currentTimeMillis))
+        {:keys [incomplete completed] :as state} state
+        k (fragment-key fragment)
+        n (get fragment "fragment-count")
+        ^bytes bytes (get fragment "fragment")]
+    (cond
+      (some #(= k %) completed)
+      [state nil]
+
+      (malformation fragment)
+      (do (println "Dropping malformed fragment:" k (malformation fragment))
+          [state nil])
+
+      (some-> (get incomplete k) :count (not= n))
+      (do (println "Dropping fragment with inconsistent fragment-count:" k n)
+          [state nil])
+
+      (> (reserved-size n) max-reassembly-bytes)
+      (do (println "Dropping tuple too large to reassemble:" k n "fragments")
+          [state nil])
+
+      :else
+      (when-some [state (if (contains? incomplete k)
+                          state
+                          (some-> (admitted state n now) (update :size + (reserved-size n))))]
+        (let [entry (-> (get-in state [:incomplete k] {:fragments {} :count n})
+                        (assoc-in [:fragments (fragment-index fragment)] bytes)
+                        (assoc :touched-at now))]
+          (if (= n (count (:fragments entry)))
+            [(-> state
+                 (update :incomplete dissoc k)
+                 (update :size - (reserved-size n))
+                 (update :completed remember-completion k))
+             (deserialized k (joined (:fragments entry)))]
+            [(assoc-in state [:incomplete k] entry)
+             nil]))))))
+
+(def reassembly
+  "The initial reassembly state. Its size is the memory reserved for the
+   incomplete tuples, enough for all of their fragments."
+  {:incomplete {} :size 0 :completed []})
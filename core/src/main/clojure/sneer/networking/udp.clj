@@ -1,12 +1,18 @@
 (ns sneer.networking.udp
-  (:require [sneer.serialization :refer [serialize deserialize]]
-            [clojure.core.async :as async :refer [>! <! >!! <!!]]
+  (:require [sneer.serialization :refer [serialize serialized-size deserialize]]
+            [clojure.core.async :as async :refer [>! <! >!! <!! alts!! timeout]]
+            [clojure.core.cache :as cache]
             [sneer.commons :refer :all])
   (:import [java.net DatagramPacket DatagramSocket]
            [sneer.commons SystemReport]))
 
 (def MTU 1400)  ; "Maximum Transmission Unit" size based on anecdotal suggestions on the web.
 
+(def ^:private linger-millis 5)
+(def ^:private max-pending 256)
+(def ^:private batch-overhead 32) ; Generous upper bound for encoding {:batch [...]} around the values.
+(def ^:private max-batching-peers 4096)
+
 (defn- new-datagram []
   (DatagramPacket. (byte-array MTU) MTU))
 
@@ -18,12 +24,75 @@
     #_(println address value)
     [address value]))
 
+(def probe
+  "An empty batch. Peers that understand batches answer it with one of their
+   own the first time they get a batch from an address. Others ignore it, as
+   it is not addressed to anyone. Peers that understand batches also read
+   MessagePack, so datagrams to them are encoded in it. Others get JSON,
+   the only format they read."
+  {:batch []})
+
+(defn batching-peers
+  "The addresses known to accept batches, least recently heard from first
+   to be forgotten. Addresses a peer stops using, such as after a NAT
+   rebinding, fall out. A peer forgotten while still active is sent JSON
+   and probed again, and is learned again from its next batch."
+  []
+  (atom (cache/lru-cache-factory {} :threshold max-batching-peers)))
+
+(defn- batch? [value]
+  (and (map? value) (contains? value :batch)))
+
+(defn- pack
+  "Groups values into as few datagrams as fit in the MTU, in order. Values in
+   a group are sent as {:batch [value ...]}, single values as they are. The
+   size of a value embedded in a batch is never larger than its size alone."
+  [values]
+  (let [close-group #(if (= 1 (count %)) (first %) {:batch %})]
+    (loop [[value & more :as values] values
+           group []
+           size batch-overhead
+           datagrams []]
+      (if (empty? values)
+        (cond-> datagrams (seq group) (conj (close-group group)))
+        (let [value-size (serialized-size value)]
+          (if (or (empty? group) (<= (+ size value-size) MTU))
+            (recur more (conj group value) (+ size value-size) datagrams)
+            (recur values [] batch-overhead (conj datagrams (close-group group)))))))))
+
+(defn take-pending!!
+  "Takes the packets that arrive in packets-out within the linger window after
+   the first one, up to max-pending."
+  [packets-out first-packet]
+  (let [linger (timeout linger-millis)]
+    (loop [packets [first-packet]]
+      (if (= (count packets) max-pending)
+        packets
+        (let [[packet port] (alts!! [packets-out linger] :priority true)]
+          (if (and packet (identical? port packets-out))
+            (recur (conj packets packet))
+            packets))))))
+
+(defn ->datagram-values
+  "Coalesces the values going to the same address into batches if the address
+   is known to accept them. Otherwise, values that would have been batched are
+   sent one by one, after a probe. Returns [address value format] triples."
+  [packets batching-peers]
+  (for [[address packets] (group-by first packets)
+        :let [values (map second packets)
+              batching? (cache/has? @batching-peers address)]
+        value (cond
+                batching? (pack values)
+                (next values) (cons probe values)
+                :else values)]
+    [address value (if batching? :msgpack :json)]))
+
 (defn- ->datagram
-  "Returns an encoded datagram of the given value, with the given socket address set."
-  [[address value]]
+  "Returns a datagram of the given value encoded in format, with the given socket address set."
+  [[address value format]]
   (doto (^DatagramPacket new-datagram)
     (.setSocketAddress address)
-    (.setData (serialize value))))
+    (.setData (serialize value format))))
 
 (defn- send-value [socket value]
   (.send ^DatagramSocket socket (->datagram value)))
@@ -33,6 +102,24 @@
    (.receive ^DatagramSocket socket datagram)
    (->value datagram)))
 
+(defn put-received!!
+  "Puts the received value, or the values in a received batch, into
+   packets-in. Returns a probe to be sent back when address has just been
+   found to accept batches, so that it learns this peer accepts them too.
+   Any receipt from a known address keeps it from being forgotten."
+  [packets-in batching-peers [address value :as packet]]
+  (let [known? (cache/has? @batching-peers address)
+        discovered? (and (batch? value) (not known?))]
+    (cond
+      known? (swap! batching-peers cache/hit address)
+      discovered? (swap! batching-peers cache/miss address true))
+    (if (batch? value)
+      (doseq [value (:batch value)]
+        (>!! packets-in [address value]))
+      (>!! packets-in packet))
+    (when discovered?
+      [address probe :json])))
+
 (defn- is-open [socket]
   (and socket (not (.isClosed ^DatagramSocket socket))))
 
@@ -80,19 +167,25 @@
 
 (defn start-udp-server
   "Opens a UDP socket on port, sending packets taken from packets-out and putting received packets into packets-in.
+  Packets to the same address that are taken within a few milliseconds of each other are sent together in a
+  single datagram when possible. Datagrams carrying several packets are only sent to addresses that have sent
+  such datagrams themselves, so peers that do not understand them still get every packet (see probe).
   Server will stop when packets-out is closed."
-  [packets-in packets-out & [port]]  
+  [packets-in packets-out & [port]]
 
   (let [socket-atom (atom nil)
-        closed? (atom false)]
+        closed? (atom false)
+        batching-peers (batching-peers)]
 
     (async/thread
       (while-let [packet (<!! packets-out)]
-        (when-let [socket @socket-atom]
-          (close-on-err port socket #(send-value % packet))))
+        (doseq [packet (->datagram-values (take-pending!! packets-out packet) batching-peers)]
+          (when-let [socket @socket-atom]
+            (close-on-err port socket #(send-value % packet)))))
       (reset! closed? true)
       (close-socket port @socket-atom))
 
     (async/thread
       (while-let [socket (produce-socket port socket-atom closed?)]
-        (close-on-err port socket #(>!! packets-in (receive-value %)))))))
+        (close-on-err port socket #(when-some [reply (put-received!! packets-in batching-peers (receive-value %))]
+                                     (send-value % reply)))))))
@@ -1,13 +1,19 @@
 (ns sneer.serialization
   (:refer-clojure :exclude [read write])
   (:import
-    [java.io ByteArrayInputStream ByteArrayOutputStream]
     [sneer PublicKey]
-    [sneer.commons.exceptions FriendlyException])
+    [sneer.commons ReusableByteArrayInputStream ReusableByteArrayOutputStream]
+    [sneer.commons.exceptions FriendlyException]
+    [java.nio ByteBuffer])
   (:require [cognitect.transit :as transit]
             [sneer.keys :as keys]))
 
-(def ^:private transit-format :json) ; other options are :json-verbose and :msgpack
+(def ^:private default-format :msgpack) ; :json is still read, see deserialize
+
+(def ^:private msgpack-header
+  "Prefixes MessagePack encoded values. It is never used by MessagePack itself
+   and never starts a JSON document, so it tells the formats apart."
+  (unchecked-byte 0xC1))
 
 (def ^:private write-handlers
   {PublicKey
@@ -36,27 +42,118 @@
 (def write transit/write)
 (def read  transit/read)
 
-(defn writer [output-stream]
-  (transit/writer output-stream transit-format write-opts))
+(defn writer
+  "Streams values without a header, so the format must be known by the reader.
+   Defaults to :json."
+  [output-stream & [format]]
+  (transit/writer output-stream (or format :json) write-opts))
+
+(defn reader [input-stream & [format]]
+  (transit/reader input-stream (or format :json) read-opts))
+
+(def ^:private retained-buffer-size (* 64 1024))
+
+(defn- new-codec
+  "Buffers, streams and a MessagePack writer and reader, to be reused by one
+   thread. JSON writers and readers are not reused: Jackson separates
+   successive root values with a space and reads ahead of the current value."
+  []
+  (let [out (ReusableByteArrayOutputStream. 512)
+        in (ReusableByteArrayInputStream.)]
+    {:out out
+     :in in
+     :msgpack-writer (writer out :msgpack)
+     :msgpack-reader (reader in :msgpack)
+     :busy (volatile! false)}))
+
+(def ^:private ^ThreadLocal codecs
+  (proxy [ThreadLocal] []
+    (initialValue [] (new-codec))))
 
-(defn reader [input-stream]
-  (transit/reader input-stream  transit-format read-opts))
+(defn- with-codec
+  "Calls f with this thread's codec, or with a new one if this thread's is
+   already in use (when realizing a lazy value being serialized calls
+   serialize, for example). A codec is discarded when an exception might have
+   left its writer or reader inconsistent."
+  [f]
+  (let [codec (.get codecs)
+        busy (:busy codec)]
+    (if @busy
+      (f (new-codec))
+      (try
+        (vreset! busy true)
+        (f codec)
+        (catch Throwable t
+          (.remove codecs)
+          (throw t))
+        (finally
+          (vreset! busy false)
+          (.reset ^ReusableByteArrayOutputStream (:out codec) retained-buffer-size)
+          (.clear ^ReusableByteArrayInputStream (:in codec)))))))
 
-(defn serialize [value]
-  (let [out (ByteArrayOutputStream.)]
-    (write (writer out) value)
-    (.toByteArray out)))
+(defn- write-into!
+  "Encodes value into the codec's output buffer. Returns the encoded size."
+  [{:keys [^ReusableByteArrayOutputStream out msgpack-writer]} value format]
+  (.reset out)
+  (if (= format :msgpack)
+    (do
+      (.write out (int msgpack-header))
+      (write msgpack-writer value))
+    (write (writer out format) value))
+  (.size out))
+
+(defn- read-from [{:keys [^ReusableByteArrayInputStream in msgpack-reader]} ^bytes bytes length]
+  (if (and (pos? length) (= (aget bytes 0) msgpack-header))
+    (do
+      (.reset in bytes 1 (dec length))
+      (read msgpack-reader))
+    (do
+      (.reset in bytes 0 length)
+      (read (reader in)))))
+
+(defn serialize
+  "Encodes value as :msgpack (the default) or :json."
+  ([value]
+     (serialize value default-format))
+  ([value format]
+     (with-codec
+       (fn [codec]
+         (write-into! codec value format)
+         (.toByteArray ^ReusableByteArrayOutputStream (:out codec))))))
+
+(defn serialized-size
+  "The length of what serialize would return, without copying it."
+  ([value]
+     (serialized-size value default-format))
+  ([value format]
+     (with-codec #(write-into! % value format))))
+
+(defn serialize-into!
+  "Puts value, encoded as serialize would, into buffer. Returns the encoded
+   size. Throws BufferOverflowException if it does not fit."
+  ([value buffer]
+     (serialize-into! value buffer default-format))
+  ([value ^ByteBuffer buffer format]
+     (with-codec
+       (fn [{:keys [^ReusableByteArrayOutputStream out] :as codec}]
+         (let [size (write-into! codec value format)]
+           (.put buffer (.buffer out) 0 (int size))
+           size)))))
 
 (defn deserialize
+  "Decodes values encoded by serialize in either format."
   ([^bytes bytes]
      (deserialize bytes (alength bytes)))
   ([bytes length]
-     (let [in (ByteArrayInputStream. bytes 0 length)]
-       (read (reader in)))))
-
-(defn roundtrip [value max-size]
-  (let [^bytes bytes (serialize value)
-        size (alength bytes)]
-    (when (> size max-size)
-      (throw (FriendlyException. (str "Value too large (" size " bytes). Maximum is " max-size " bytes."))))
-    (deserialize bytes)))
+     (with-codec #(read-from % bytes length))))
+
+(defn roundtrip
+  "Returns value as deserialize would, reading it back straight from the
+   encoding buffer. Throws if it is encoded in more than max-size bytes."
+  [value max-size]
+  (with-codec
+    (fn [{:keys [^ReusableByteArrayOutputStream out] :as codec}]
+      (let [size (write-into! codec value default-format)]
+        (when (> size max-size)
+          (throw (FriendlyException. (str "Value too large (" size " bytes). Maximum is " max-size " bytes."))))
+        (read-from codec (.buffer out) size)))))
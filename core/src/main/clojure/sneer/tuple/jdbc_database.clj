@@ -2,11 +2,18 @@
   (:require [clojure.java.jdbc :as sql]
             [clojure.string :as string]
             [sneer.tuple.protocols :as tuple-base])
-  (:import [java.sql DriverManager SQLException]
+  (:import [java.sql Connection DriverManager PreparedStatement ResultSet ResultSetMetaData SQLException]
            [sneer.admin UniqueConstraintViolated]
-           [java.util.concurrent.locks Lock ReentrantReadWriteLock]
+           [sneer.commons SystemReport]
+           [java.util LinkedHashMap Map Map$Entry]
+           [java.util.concurrent ArrayBlockingQueue BlockingQueue TimeUnit]
+           [java.util.concurrent.atomic AtomicLong]
+           [java.util.concurrent.locks Lock ReentrantLock]
            [java.io Closeable File]))
 
+(def ^:private read-pool-size 4)
+(def ^:private statement-cache-size 64)
+
 (defn- get-connection [^File databaseFile]
   (DriverManager/getConnection
    (if databaseFile
@@ -21,32 +28,149 @@
        (finally
          (.unlock lock#)))))
 
-(defmacro with-read-lock [rw-lock & body]
-  `(with-lock (.readLock ~rw-lock) ~@body))
+(defn- execute! [^Connection connection ^String sql]
+  (with-open [statement (.createStatement connection)]
+    (.execute statement sql)))
+
+(defn- enable-wal! [connection]
+  (execute! connection "PRAGMA journal_mode=WAL"))
+
+(defn- statement-cache
+  "Least recently used statements are closed and dropped once there are more
+   than statement-cache-size, as ad-hoc SQL passed to db-query is cached too."
+  ^Map []
+  (proxy [LinkedHashMap] [16 0.75 true]
+    (removeEldestEntry [^Map$Entry eldest]
+      (if (> (.size ^Map this) statement-cache-size)
+        (do (.close ^PreparedStatement (.getValue eldest))
+            true)
+        false))))
+
+(defn- ->pooled
+  "A connection with its own prepared statement cache. Used by one thread at a time."
+  [connection]
+  {:connection connection
+   :statements (statement-cache)})
+
+(defn- report-statement-cache [^AtomicLong hits ^AtomicLong misses]
+  (let [hits (.get hits)
+        misses (.get misses)]
+    (SystemReport/updateReport
+      "database/statement-cache"
+      (str hits " hits, " misses " misses (" (quot (* 100 hits) (max 1 (+ hits misses))) "% hit rate)"))))
+
+(defn- prepared-statement
+  "Returns the cached statement for sql, preparing it on a miss."
+  ^PreparedStatement [{:keys [^Connection connection ^Map statements]} ^String sql {:keys [^AtomicLong hits ^AtomicLong misses] :as stats}]
+  (if-some [cached (.get statements sql)]
+    (do (when (zero? (bit-and (.incrementAndGet hits) 1023))
+          (report-statement-cache hits misses))
+        cached)
+    (let [statement (.prepareStatement connection sql)]
+      (.put statements sql statement)
+      (.incrementAndGet misses)
+      (report-statement-cache hits misses)
+      statement)))
+
+(defn- bind! [^PreparedStatement statement params]
+  (.clearParameters statement)
+  (loop [i 1
+         [param & more :as params] (seq params)]
+    (when params
+      (.setObject statement (int i) param)
+      (recur (inc i) more))))
+
+(defn- read-rows
+  "The first row contains the (lower case) column names, like clojure.java.jdbc's :as-arrays?"
+  [^ResultSet rs]
+  (let [meta (.getMetaData rs)
+        indices (range 1 (inc (.getColumnCount meta)))
+        names (mapv #(-> (.getColumnLabel meta (int %)) string/lower-case keyword) indices)]
+    (loop [rows [names]]
+      (if (.next rs)
+        (recur (conj rows (mapv #(.getObject rs (int %)) indices)))
+        rows))))
 
-(defmacro with-write-lock [rw-lock & body]
-  `(with-lock (.writeLock ~rw-lock) ~@body))
+(defn- evict!
+  "sqlite-jdbc leaves a statement unusable after a failed execution."
+  [{:keys [^Map statements]} sql]
+  (when-some [^PreparedStatement statement (.remove statements sql)]
+    (.close statement)))
 
+(defn- query [pooled [sql & params] stats]
+  (let [statement (prepared-statement pooled sql stats)]
+    (bind! statement params)
+    (try
+      (with-open [rs (.executeQuery statement)]
+        (read-rows rs))
+      (catch SQLException e
+        (evict! pooled sql)
+        (throw e)))))
 
-(defn- reify-with [connection]
-  (let [db {:connection connection}
-        rw-lock (ReentrantReadWriteLock.)
-        open (atom true)]
+(defn- insert-sql [table columns]
+  (str "INSERT INTO " (name table)
+       " (" (string/join "," (map name columns)) ")"
+       " VALUES (" (string/join "," (repeat (count columns) "?")) ")"))
+
+(defn- update! [pooled sql params stats]
+  (let [statement (prepared-statement pooled sql stats)]
+    (bind! statement params)
+    (try
+      (.executeUpdate statement)
+      (catch SQLException e
+        (evict! pooled sql)
+        (throw e)))))
+
+(defn- insert [pooled table row stats]
+  (update! pooled (insert-sql table (keys row)) (vals row) stats))
+
+(defn- close-pooled [{:keys [^Connection connection ^Map statements]}]
+  (doseq [^PreparedStatement statement (.values statements)]
+    (.close statement))
+  (.close connection))
+
+(defn- take-reader
+  "Takes a reader from the pool, or nil if the database is closed."
+  [^BlockingQueue readers open]
+  (loop []
+    (when @open
+      (or (.poll readers 100 TimeUnit/MILLISECONDS)
+          (recur)))))
+
+(defn- reify-with
+  "Writes go through a single connection. Reads go through a pool of
+   connections, running alongside the writer thanks to WAL, except reads by
+   the writing thread itself (so that they see its open transaction) and
+   reads of in-memory databases (which cannot be shared by connections)."
+  [writer ^BlockingQueue readers]
+  (let [write-lock (ReentrantLock.)
+        stats {:hits (AtomicLong.) :misses (AtomicLong.)}
+        open (atom true)
+
+        with-reader
+        (fn [f]
+          (if (or (nil? readers) (.isHeldByCurrentThread write-lock))
+            (with-lock write-lock
+              (f writer))
+            (when-some [reader (take-reader readers open)]
+              (try
+                (f reader)
+                (finally
+                  (.put readers reader))))))]
     (reify
       tuple-base/Database
       (db-create-table [_ table columns]
-        (with-write-lock rw-lock
-          (let [tuple-ddl (apply sql/create-table-ddl table columns)]
-            (sql/execute! db [tuple-ddl]))))
+        (with-lock write-lock
+          (execute! (:connection writer) (apply sql/create-table-ddl table columns))))
 
       (db-create-index [_ table index-name columns-names unique?]
-        (with-write-lock rw-lock
-          (sql/execute! db [(str "CREATE" (when unique? " UNIQUE") " INDEX " index-name " ON " (name table) "(" (string/join "," (map name columns-names)) ")" )])))
+        (with-lock write-lock
+          (execute! (:connection writer) (str "CREATE" (when unique? " UNIQUE") " INDEX " index-name " ON " (name table) "(" (string/join "," (map name columns-names)) ")" ))))
 
       (db-insert [_ table row]
         (try
-          (with-write-lock rw-lock
-            (sql/insert! db table row))
+          (with-lock write-lock
+            (insert writer table row stats))
           (catch SQLException e
             ;; [SQLITE_CONSTRAINT] Abort due to constraint violation (UNIQUE constraint failed: tuple.author, tuple.original_id
             (if (.. e getMessage (contains "UNIQUE constraint"))
@@ -55,16 +179,44 @@
 
       (db-query [_ sql-and-params]
         (try
-          (with-read-lock rw-lock
-                          (sql/query db sql-and-params :result-set-fn doall :as-arrays? true))
+          (or (with-reader #(query % sql-and-params stats))
+              [])
           (catch Exception e
             (if @open (throw e) []))))
 
+      (db-execute [_ [sql & params]]
+        (with-lock write-lock
+          (update! writer sql params stats)))
+
+      (db-transaction [_ f]
+        (with-lock write-lock
+          (let [^Connection connection (:connection writer)]
+            (.setAutoCommit connection false)
+            (try
+              (let [result (f)]
+                (.commit connection)
+                result)
+              (catch Throwable t
+                (.rollback connection)
+                (throw t))
+              (finally
+                (.setAutoCommit connection true))))))
+
       Closeable
       (close [_]
-        (with-write-lock rw-lock
-          (reset! open false)
-          (.close connection))))))
+        (reset! open false)
+        (with-lock write-lock
+          (when readers
+            (dotimes [_ read-pool-size]
+              (close-pooled (.take readers))))
+          (close-pooled writer))))))
 
 (defn create-sqlite-db [& [databaseFile]]
-  (reify-with(get-connection databaseFile)))
+  (let [writer (get-connection databaseFile)]
+    (if databaseFile
+      (do
+        (enable-wal! writer)
+        (reify-with (->pooled writer)
+                    (ArrayBlockingQueue. read-pool-size true
+                                         (repeatedly read-pool-size #(->pooled (get-connection databaseFile))))))
+      (reify-with (->pooled writer) nil))))
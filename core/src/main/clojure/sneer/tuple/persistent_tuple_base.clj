@@ -1,16 +1,22 @@
 (ns sneer.tuple.persistent-tuple-base
   (:import [sneer.commons SystemReport Clock]
            [sneer.admin UniqueConstraintViolated]
+           [java.security MessageDigest]
            [java.lang AutoCloseable]
+           [java.text SimpleDateFormat]
+           [java.util Date TimeZone]
            (sneer PublicKey))
   (:require [sneer.commons :refer [submap?]]
-            [sneer.async :refer [dropping-chan go-trace dropping-tap]]
-            [clojure.core.async :as async :refer [go-loop <! >! >!! <!! mult tap chan close! go thread]]
+            [sneer.async :refer [sliding-chan go-trace go-loop-trace]]
+            [clojure.core.async :as async :refer [<! >! >!! <!! alts!! chan close! go thread]]
             [sneer.rx :refer [filter-by seq->observable]]
             [sneer.rx-macros :refer :all]
             [clojure.core.match :refer [match]]
+            [clojure.walk :as walk]
+            [clojure.core.cache :as cache]
             [sneer.serialization :as serialization]
             [sneer.tuple.protocols :refer :all]
+            [sneer.tuple.tuple-cache :as tuple-cache]
             [sneer.keys :as keys]))
 
 (def after-id ::after-id)
@@ -28,9 +34,9 @@
      [:type :varchar "NOT NULL"]
      [:payload :blob]
      [:timestamp :timestamp "NOT NULL" "DEFAULT CURRENT_TIMESTAMP"]
-     [:author :blob "NOT NULL"]
+     [:author :integer "NOT NULL"]                          ; Party id
      [:original_id :integer "NOT NULL"]
-     [:audience :blob]
+     [:audience :integer]                                   ; Party id
      ;[:device :blob "NOT NULL"]
      ;[:sequence :integer "NOT NULL"]
      ;[:signature :blob "NOT NULL"]
@@ -44,12 +50,118 @@
      [:tuple_id :integer "NOT NULL"]
      [:value :blob]]))
 
-(defn- create-tuple-indices [db]
-  (db-create-index db :tuple "idx_tuple_uniqueness" [:author :original_id] true)
-  (db-create-index db :tuple "idx_tuple_type" [:type] false))
+(defn- create-field-table
+  "Custom fields of tuples, one row per field, so that criteria on them can be
+   evaluated by the database instead of deserializing every candidate tuple."
+  [db]
+  (db-create-table
+    db :tuple_field
+    [[:tuple_id :integer "NOT NULL"]
+     [:name :varchar "NOT NULL"]
+     [:value :blob "NOT NULL"]]))
 
-(defn- create-attribute-indices [db]
-  (db-create-index db :attribute "idx_attribute_tuple" [:tuple_id] false))
+(defn- create-field-indices [db]
+  (db-create-index db :tuple_field "idx_tuple_field" [:name :value :tuple_id] false))
+
+(defn- create-tuple-indices [db]
+  (db-create-index db :tuple "idx_tuple_uniqueness" [:author :original_id] true))
+
+(defn- create-tuple-lookup-indices
+  "For the hot query shapes: type with author and/or audience, ID > after-id,
+   ORDER BY id. SQLite appends the id (rowid) to every index entry, so the id
+   range and order come from these indices too, but only when all of their
+   columns are constrained, hence one index per shape. Naming the id
+   explicitly would keep the planner from using them. Created separately so
+   that existing databases get them too. The type index of earlier versions
+   is a prefix of these, so it is dropped first."
+  [db]
+  (db-execute db ["DROP INDEX IF EXISTS idx_tuple_type"])
+  (db-create-index db :tuple "idx_tuple_type_author_audience" [:type :author :audience] false)
+  (db-create-index db :tuple "idx_tuple_type_author" [:type :author] false)
+  (db-create-index db :tuple "idx_tuple_type_audience" [:type :audience] false))
+
+(defn- uniqueness-key-exists? [db]
+  (-> (db-query db ["SELECT name FROM sqlite_master WHERE type = 'index' AND name = 'idx_tuple_uniqueness_key'"])
+      next
+      seq))
+
+(defn- attribute-key-exists? [db]
+  (-> (db-query db ["SELECT name FROM sqlite_master WHERE type = 'index' AND name = 'idx_attribute_key'"])
+      next
+      seq))
+
+(defn- compact-attributes!
+  "Earlier versions appended a row for every value an attribute was set to.
+   Keeps only the latest of those and makes (tuple_id, attribute) unique."
+  [db]
+  (db-transaction
+    db
+    #(do
+       (db-execute db ["DELETE FROM attribute WHERE id NOT IN (SELECT MAX(id) FROM attribute GROUP BY tuple_id, attribute)"])
+       (db-execute db ["DROP INDEX IF EXISTS idx_attribute_tuple"])
+       (db-create-index db :attribute "idx_attribute_key" [:tuple_id :attribute] true))))
+
+(defn- create-party-table
+  "Every puk that was an author or audience, so that tuple rows and indices
+   refer to them by a small integer id."
+  [db]
+  (db-create-table
+    db :party
+    [[:id :integer "PRIMARY KEY"]
+     [:puk :blob "NOT NULL" "UNIQUE"]]))
+
+(defn- intern-parties!
+  "Earlier versions stored author and audience puks in every tuple row.
+   Moves them to the party table, leaving their ids in their place."
+  [db]
+  (db-transaction
+    db
+    #(doseq [column ["author" "audience"]]
+       (db-execute db [(str "INSERT OR IGNORE INTO party (puk) SELECT DISTINCT " column " FROM tuple WHERE typeof(" column ") = 'blob'")])
+       (db-execute db [(str "UPDATE tuple SET " column " = (SELECT id FROM party WHERE party.puk = tuple." column ") WHERE typeof(" column ") = 'blob'")]))))
+
+(defn- registered [parties id puk]
+  (-> parties
+      (assoc-in [:ids puk] id)
+      (assoc-in [:puks id] puk)))
+
+(defn- load-parties
+  "The party table in memory, with one puk instance per party."
+  [db]
+  (reduce (fn [parties [id puk]] (registered parties (long id) (keys/create-puk puk)))
+          {:ids {} :puks {}}
+          (next (db-query db ["SELECT id, puk FROM party"]))))
+
+(defn- party-id
+  "The id of puk, or -1, which matches no row, if it was never stored."
+  [parties puk]
+  (get-in @parties [:ids puk] -1))
+
+(defn- produce-party-id!
+  "Must be called by the writer, within its transaction."
+  [db parties ^PublicKey puk]
+  (or (get-in @parties [:ids puk])
+      (let [bytes (.toBytes puk)]
+        (db-insert db :party {"puk" bytes})
+        (let [id (-> (db-query db ["SELECT id FROM party WHERE puk = ?" bytes]) second first long)]
+          (swap! parties registered id puk)
+          id))))
+
+(defn- party-puk [db parties id]
+  (or (get-in @parties [:puks id])
+      (when-some [puk (some-> (db-query db ["SELECT puk FROM party WHERE id = ?" id]) second first keys/create-puk)]
+        (swap! parties registered id puk)
+        puk)))
+
+(defn- with-parties
+  "Replaces the author and audience of row using f."
+  [row f]
+  (reduce (fn [row field]
+            (if-some [v (get row field)]
+              (assoc row field (f v))
+              row))
+          row
+          ["author" "audience"]))
 
 (defn- create-prik-table [db]
   (db-create-table
@@ -58,24 +170,21 @@
 
 (def builtin-field? #{"type" "payload" "author" "audience" "timestamp"})
 
-(defn puk-serializer [^PublicKey puk]
-  (.toBytes puk))
-
-(defn puk-deserializer [bytes]
-  (keys/create-puk bytes))
-
 (def core-serializer serialization/serialize)
 
 (def core-deserializer serialization/deserialize)
 
-(def serializers {"author"   puk-serializer
-                  "audience" puk-serializer
-                  "payload"  core-serializer
+(defn- json-serializer
+  "Payloads and indexed field values are compared in SQL, so they stay JSON
+   to keep matching the ones stored by earlier versions."
+  [value]
+  (serialization/serialize value :json))
+
+; Author and audience are stored as party ids (see with-parties).
+(def serializers {"payload"  json-serializer
                   "custom"   core-serializer})
 
-(def deserializers {"author"   puk-deserializer
-                    "audience" puk-deserializer
-                    "payload"  core-deserializer
+(def deserializers {"payload"  core-deserializer
                     "custom"   core-deserializer})
 
 (defn apply-serializer [row field serializer]
@@ -90,6 +199,28 @@
 (defn deserialize-entries [row]
   (reduce-kv apply-serializer row deserializers))
 
+(def ^:private column-field?
+  "Fields that are not builtin but are stored in their own columns."
+  #{"id" "original_id"})
+
+(def ^:private max-indexed-size
+  "Larger values, such as chat message labels, are left out of the field table."
+  128)
+
+(def ^:private byte-array-class (Class/forName "[B"))
+
+(defn- indexed-field-values
+  "The [field serialized-value] pairs that go into the field table: those of
+   scalar values, whose serialized form is canonical (unlike that of maps,
+   for instance), except byte arrays and values serialized larger than
+   max-indexed-size. Criteria on other fields are left for submap?."
+  [custom]
+  (for [[field value] custom
+        :when (not (or (column-field? field) (nil? value) (coll? value) (instance? byte-array-class value)))
+        :let [^bytes serialized (json-serializer value)]
+        :when (<= (alength serialized) max-indexed-size)]
+    [field serialized]))
+
 (defn ->custom-field-map [tuple]
   (reduce-kv
     (fn [map k v]
@@ -99,139 +230,538 @@
     nil
     tuple))
 
-(defn- query-by-builtin-fields [criteria after-id last-by-id]
-  (let [columns (-> criteria (select-keys builtin-field?) serialize-entries)
-        clauses (cond-> (map #(str % " = ?") (keys columns))
-                  (some? after-id)
-                  (conj (str "ID > " after-id)))
+(def ^:private query-chunk-size 128)
+
+(def ^:private column-order
+  "Columns are compared in this order, so that criteria with the same fields
+   always produce the same SQL, whatever the order of their keys."
+  ["type" "author" "audience" "payload" "timestamp" "id" "original_id"])
+
+(defn- query-by-criteria
+  "Builtin and column fields are compared directly, indexed custom fields
+   through the field table. Other custom fields are left for submap?.
+   Author and audience must already be party ids."
+  [criteria after-id upto last-by-id]
+  (let [columns (merge (-> criteria (select-keys builtin-field?) serialize-entries)
+                       (select-keys criteria column-field?))
+        columns (keep #(find columns %) column-order)
+        fields (sort-by (comp str first) (indexed-field-values (->custom-field-map criteria)))
+        clauses (cond-> (mapv #(str (key %) " = ?") columns)
+                  (some? after-id) (conj "ID > ?")
+                  (some? upto)     (conj "ID <= ?")
+                  :always          (into (repeat (count fields) "ID IN (SELECT tuple_id FROM tuple_field WHERE name = ? AND value = ?)")))
         ^String
         filter (apply str (interpose " AND " clauses))
-        values (vals columns)
+        values (cond-> (mapv val columns)
+                 (some? after-id) (conj after-id)
+                 (some? upto)     (conj upto)
+                 :always          (into (apply concat fields)))
         select (str "SELECT * FROM tuple"
                     (when-not (.isEmpty filter) " WHERE ") filter
                     " ORDER BY id"
-                    (when last-by-id " DESC LIMIT 1"))]
+                    (if last-by-id
+                      " DESC LIMIT 1"
+                      (str " LIMIT " query-chunk-size)))]
     (apply vector select values)))
 
-(defn query-tuples-from-db [db criteria]
-  (let [after-id (::after-id criteria)
-        criteria (dissoc criteria ::after-id)
-        last-by-id (::last-by-id criteria)
-        criteria (dissoc criteria ::last-by-id)
-        query (query-by-builtin-fields criteria after-id last-by-id)
-        rs (db-query db query)
+(defn- row->tuple [row]
+  (let [row (deserialize-entries row)]
+    (merge (get row "custom") (dissoc row "custom" "uniqueness_key"))))
+
+(defn- query-chunk
+  "Queries a chunk of rows stored after the after-id and up to the upto id, if
+   given. Returns the tuples among them that match criteria and the id to query
+   the next chunk after, or nil if there are no more rows."
+  [db parties criteria after-id upto]
+  (let [last-by-id (::last-by-id criteria)
+        criteria (dissoc criteria ::after-id ::last-by-id)
+        rs (db-query db (query-by-criteria (with-parties criteria #(party-id parties %)) after-id upto last-by-id))
         field-names (mapv name (first rs))
+        rows (mapv #(zipmap field-names %) (next rs))
         custom (-> criteria ->custom-field-map)]
-    (->>
-      (next rs)
-      (map #(deserialize-entries (zipmap field-names %)))
-      (map #(merge (get % "custom") (dissoc % "custom")))
-      (filter #(submap? custom %)))))
-
-(defn- insert-tuple [db tuple id]
+    [(->> rows
+          (map #(row->tuple (with-parties % (partial party-puk db parties))))
+          (filterv #(submap? custom %)))
+     (when (and (not last-by-id) (= (count rows) query-chunk-size))
+       (-> rows peek (get "id")))]))
+
+(defn matches?
+  "Evaluates criteria against a stored tuple in memory, with the same
+   semantics query-tuples-from-db has in SQL: builtin fields must be present
+   and equal, custom fields must form a submap of the tuple."
+  [criteria tuple]
+  (let [criteria (dissoc criteria ::after-id ::last-by-id)]
+    (and (reduce-kv
+           (fn [_ k v]
+             (if (or (not (builtin-field? k))
+                     (and (some? v) (= v (get tuple k))))
+               true
+               (reduced false)))
+           true
+           criteria)
+         (submap? (->custom-field-map criteria) tuple))))
+
+(defn- cache-key [criteria]
+  (dissoc criteria ::after-id))
+
+(defn- cached-by-id
+  "Ids are unique, so the tuple cached with the id in criteria is the whole result."
+  [db parties tuple-cache criteria after-id upto]
+  (let [tuple-id (get criteria "id")]
+    (if-some [tuple (when (and (> tuple-id (or after-id 0)) (or (nil? upto) (<= tuple-id upto)))
+                      (tuple-cache/tuple-by-id @tuple-cache tuple-id))]
+      (do (tuple-cache/count-hit! tuple-cache)
+          (swap! tuple-cache tuple-cache/touched [:id tuple-id])
+          [(if (matches? criteria tuple) [tuple] []) nil])
+      (let [[tuples _ :as chunk] (query-chunk db parties criteria after-id upto)]
+        (tuple-cache/count-miss! tuple-cache)
+        (swap! tuple-cache #(reduce tuple-cache/put-tuple % tuples))
+        chunk))))
+
+(defn- cached-chunk
+  "Like query-chunk, but reads the tuples held by the tuple cache from memory.
+   The tuples read from the database are cached under criteria, extending
+   what is already cached for it."
+  [db parties tuple-cache criteria after-id upto]
+  (cond
+    (or (nil? tuple-cache) (::last-by-id criteria))
+    (query-chunk db parties criteria after-id upto)
+
+    (and upto (>= (or after-id 0) upto))
+    [[] nil]
+
+    (integer? (get criteria "id"))
+    (cached-by-id db parties tuple-cache criteria after-id upto)
+
+    :else
+    (let [key (cache-key criteria)]
+      (if-some [entry (tuple-cache/covering @tuple-cache key after-id)]
+        (do (tuple-cache/count-hit! tuple-cache)
+            (swap! tuple-cache tuple-cache/touched [:criteria key])
+            [(tuple-cache/in-range entry after-id upto)
+             (when (or (nil? upto) (> upto (:upto entry)))
+               (:upto entry))])
+        (let [[tuples next-after-id :as chunk] (query-chunk db parties criteria after-id upto)]
+          (tuple-cache/count-miss! tuple-cache)
+          (when upto
+            (swap! tuple-cache tuple-cache/put-criteria key after-id (or next-after-id upto) tuples))
+          chunk)))))
+
+(defn query-tuples-from-db
+  "Lazy sequence of the tuples matching criteria, up to the upto id if given.
+   Rows are read one chunk at a time, as the sequence is consumed."
+  [db parties criteria & [upto]]
+  (letfn [(chunks [after-id]
+            (lazy-seq
+              (let [[tuples next-after-id] (query-chunk db parties criteria after-id upto)]
+                (concat tuples (when next-after-id (chunks next-after-id))))))]
+    (chunks (::after-id criteria))))
+
+(defn- stream-tuples!
+  "Puts the tuples matching criteria, stored after the after-id and up to the
+   upto id, onto tuples-out. The next chunk is only queried once the previous
+   one has been taken, so memory use does not grow with history size. Returns
+   a channel that emits true when done or false if tuples-out was closed."
+  [db parties tuple-cache criteria after-id upto tuples-out]
+  (go-loop-trace [after-id after-id]
+    (let [[tuples next-after-id] (<! (thread (cached-chunk db parties tuple-cache criteria after-id upto)))
+          delivered? (loop [[tuple & more :as tuples] (seq tuples)]
+                       (if tuples
+                         (when (>! tuples-out tuple)
+                           (recur more))
+                         true))]
+      (cond
+        (not delivered?) false
+        next-after-id    (recur next-after-id)
+        :else            true))))
+
+(def ^:private empty-row
+  "Every column of the tuple table, as returned by a SELECT *."
+  {"payload" nil "audience" nil "custom" nil "uniqueness_key" nil})
+
+(defn- canonical
+  "Sorts the entries of maps, so that equal criteria serialize the same."
+  [x]
+  (walk/postwalk #(if (map? %)
+                    (into (sorted-map-by (fn [a b] (compare [(str (class a)) (str a)]
+                                                            [(str (class b)) (str b)])))
+                          %)
+                    %)
+                 x))
+
+(defn- sub-uniqueness
+  "The uniqueness criteria of a sub tuple, as stored. Taken from the stored
+   form so that values changed by serialization (floats, for instance) give
+   the same key whether the sub is being stored or was read back."
+  [sub]
+  (select-keys sub ["type" "author" "criteria"]))
+
+(defn- uniqueness-key
+  "SHA-256 of the canonical serialized form of the uniqueness criteria."
+  ^bytes [criteria]
+  (.digest (MessageDigest/getInstance "SHA-256")
+           ^bytes (serialization/serialize (canonical criteria))))
+
+(defn- sql-timestamp
+  "The same representation SQLite uses for CURRENT_TIMESTAMP."
+  []
+  (let [format (SimpleDateFormat. "yyyy-MM-dd HH:mm:ss")]
+    (.setTimeZone format (TimeZone/getTimeZone "UTC"))
+    (.format format (Date.))))
+
+(defn- insert-fields! [db tuple-id custom]
+  (doseq [[field value] (indexed-field-values custom)]
+    (db-insert db :tuple_field {"tuple_id" tuple-id
+                                "name"     field
+                                "value"    value})))
+
+(defn- index-stored-fields!
+  "Fills the field table for the tuples stored before it existed."
+  [db parties]
+  (db-transaction
+    db
+    #(doseq [tuple (query-tuples-from-db db parties {})]
+       (insert-fields! db (get tuple "id") (->custom-field-map tuple)))))
+
+(defn- insert-tuple
+  "Inserts tuple with the given id and returns it exactly as a query would,
+   or nil if a tuple with the same author and original id or with the same
+   uniqueness criteria was stored before."
+  [db parties tuple id uniqueness]
   (let [custom (->custom-field-map tuple)
         row (select-keys tuple builtin-field?)
         original-id (or (get tuple "id") id)
-        row (assoc row
+        row (assoc (merge empty-row row)
                    "id" id
                    "original_id" original-id
-                   "custom" custom)]
-    (db-insert db :tuple (serialize-entries row))
-    (assoc tuple "id" id "original_id" original-id)))
-
-(defn- try-insert-tuple [db tuple id]
-  (try
-    (insert-tuple db tuple id)
-    (catch UniqueConstraintViolated _
-      (println "try-insert: unique constraint violated")
-      nil)
-    (catch Exception e
-      (println e)
-      (SystemReport/updateReport "database/error" e)
-      nil)))
-
-(defn- result-empty? [db criteria]
-  (let [rs (query-tuples-from-db db criteria)]
-    (-> rs empty?)))
+                   "timestamp" (or (get tuple "timestamp") (sql-timestamp))
+                   "custom" custom
+                   "uniqueness_key" (some-> uniqueness uniqueness-key))
+        row (serialize-entries row)]
+    (db-insert db :tuple (with-parties row #(produce-party-id! db parties %)))
+    (insert-fields! db id custom)
+    (row->tuple row)))
+
+(defn- uniqueness-key-violated? [^Exception e]
+  (.contains (str (.getMessage e)) "uniqueness_key"))
+
+(defn- rolled-back!
+  "Undoes everything done since the store savepoint. Parties the store added
+   are forgotten in memory too, going back to parties-before."
+  [db parties parties-before]
+  (db-execute db ["ROLLBACK TO store"])
+  (db-execute db ["RELEASE store"])
+  (reset! parties parties-before))
+
+(defn- try-insert-tuple
+  "Inserts under a savepoint, so that a store that fails after writing some
+   of its rows leaves none of them in the batch transaction."
+  [db parties tuple id uniqueness]
+  (db-execute db ["SAVEPOINT store"])
+  (let [parties-before @parties]
+    (try
+      (let [tuple (insert-tuple db parties tuple id uniqueness)]
+        (db-execute db ["RELEASE store"])
+        tuple)
+      (catch UniqueConstraintViolated e
+        (rolled-back! db parties parties-before)
+        (when-not (uniqueness-key-violated? e)              ; Stored before with the same uniqueness criteria: expected.
+          (println "try-insert: unique constraint violated" (.getMessage e)))
+        nil)
+      (catch Exception e
+        (rolled-back! db parties parties-before)
+        (println e)
+        (SystemReport/updateReport "database/error" e)
+        nil))))
 
 (def starting-id (atom 0))
 (defn max-tuple-id [db]
   (let [rs (db-query db ["SELECT MAX(id) FROM tuple"])]
     (or (-> rs second first) @starting-id)))
 
-(defn idempotently [creation-fn]
+(defn idempotently
+  "Returns true if creation-fn created something, nil if it already existed."
+  [creation-fn]
   (try
     (creation-fn)
+    true
     (catch Exception e
       (when-not (-> e .getMessage (.contains "already exists"))
         (throw e)))))
 
-(defn setup [db]
+(defn- add-uniqueness-keys!
+  "Earlier versions enforced uniqueness criteria by querying before each
+   insert. Adds the uniqueness key column and fills it in for the sub tuples
+   they stored, the only ones stored with uniqueness criteria (see
+   store-sub), keeping the first of any duplicates."
+  [db parties]
+  (db-transaction
+    db
+    #(do
+       (when-not (some #{"uniqueness_key"} (map name (first (db-query db ["SELECT * FROM tuple LIMIT 0"]))))
+         (db-execute db ["ALTER TABLE tuple ADD COLUMN uniqueness_key BLOB"]))
+       (reduce (fn [seen sub]
+                 (let [key (uniqueness-key (sub-uniqueness sub))]
+                   (if (contains? seen (vec key))
+                     seen
+                     (do (db-execute db ["UPDATE tuple SET uniqueness_key = ? WHERE id = ?" key (get sub "id")])
+                         (conj seen (vec key))))))
+               #{}
+               (query-tuples-from-db db parties {"type" "sub"}))
+       (db-create-index db :tuple "idx_tuple_uniqueness_key" [:uniqueness_key] true))))
+
+(defn setup
+  "Creates or migrates the tables. Returns the parties, in an atom."
+  [db]
   (idempotently #(create-tuple-table db))
-  (idempotently #(create-attribute-table db))
-  (idempotently #(create-attribute-indices db))
-  (idempotently #(create-prik-table db))
-  (idempotently #(create-tuple-indices db)))
-
-(defn- store! [db uniqueness tuple-id tuple]
-  (and (or (nil? uniqueness) (result-empty? db uniqueness))
-       (try-insert-tuple db tuple tuple-id)))
+  (when (idempotently #(create-party-table db))
+    (intern-parties! db))
+  (let [parties (atom (load-parties db))]
+    (idempotently #(create-attribute-table db))
+    (when-not (attribute-key-exists? db)
+      (compact-attributes! db))
+    (idempotently #(create-prik-table db))
+    (idempotently #(create-tuple-indices db))
+    (idempotently #(create-tuple-lookup-indices db))
+    (when-not (uniqueness-key-exists? db)
+      (add-uniqueness-keys! db parties))
+    (when (idempotently #(create-field-table db))
+      (index-stored-fields! db parties))
+    (idempotently #(create-field-indices db))
+    parties))
+
+(defn- store! [db parties uniqueness tuple-id tuple]
+  (try-insert-tuple db parties tuple tuple-id uniqueness))
+
+(def ^:private attribute-cache-size 1024)
 
 (defn- set-attr! [db attribute value tuple-id]
   (try
-    (db-insert db :attribute {"attribute" attribute
-                              "value"     (serialization/serialize value)
-                              "tuple_id"  tuple-id})
+    (db-execute db ["INSERT OR REPLACE INTO attribute (tuple_id, attribute, value) VALUES (?, ?, ?)"
+                    tuple-id
+                    attribute
+                    (serialization/serialize value)])
     (catch Exception e
       (.printStackTrace e))))
 
-(defn- get-attr! [db attribute default-value tuple-id]
-  (println ">>>>> CHANGE TO USE UPDATE <<<<<")
-  (let [result-set (db-query db ["SELECT VALUE FROM ATTRIBUTE WHERE TUPLE_ID = ? AND ATTRIBUTE = ? ORDER BY ID DESC LIMIT 1"
+(defn- read-attr [db attribute tuple-id]
+  (let [result-set (db-query db ["SELECT value FROM attribute WHERE tuple_id = ? AND attribute = ?"
                                  tuple-id
-                                 attribute])
-        value (-> result-set rest first first)]
-    (if value
+                                 attribute])]
+    (if-some [value (-> result-set rest first first)]
       (serialization/deserialize value)
-      default-value)))
-
-(defn- handle-request! [db new-tuples request next-tuple-id]
+      ::absent)))
+
+(defn- get-attr!
+  "Reads through an LRU cache of attribute values, which handle-batch! keeps
+   up to date with every value written."
+  [db attribute-cache attribute default-value tuple-id]
+  (let [key [tuple-id attribute]
+        value (if (cache/has? @attribute-cache key)
+                (-> (swap! attribute-cache cache/hit key) (cache/lookup key))
+                (let [value (read-attr db attribute tuple-id)]
+                  (swap! attribute-cache cache/miss key value)
+                  value))]
+    (if (= value ::absent)
+      default-value
+      value)))
+
+(def ^:private live-buffer-size 100)
+
+(def ^:private indexed-fields ["type" "author" "audience"])
+
+(defn- index-key [criteria]
+  (mapv #(get criteria %) indexed-fields))
+
+(defn- candidate-keys
+  "The index keys of all criteria that could match tuple: each indexed field
+   either has the tuple's value or is absent from the criteria."
+  [tuple]
+  (reduce (fn [keys field]
+            (let [values (if-some [v (get tuple field)] [v nil] [nil])]
+              (for [key keys, v values] (conj key v))))
+          [[]]
+          indexed-fields))
+
+(defn- subscribe! [subscriptions subscription]
+  (swap! subscriptions update (index-key (:criteria subscription)) (fnil conj #{}) subscription))
+
+(defn- unsubscribe! [subscriptions subscription]
+  (let [key (index-key (:criteria subscription))]
+    (swap! subscriptions
+           (fn [index]
+             (let [remaining (disj (get index key) subscription)]
+               (if (empty? remaining)
+                 (dissoc index key)
+                 (assoc index key remaining)))))))
+
+(defn- notify-subscriptions!
+  "Sends tuple, numbered, only to the subscriptions whose criteria match it."
+  [subscriptions tuple]
+  (doseq [key (candidate-keys tuple)
+          {:keys [criteria tuples-in sequence]} (get @subscriptions key)
+          :when (matches? criteria tuple)]
+    (>!! tuples-in [(swap! sequence inc) tuple])))
+
+(defn- close-subscriptions! [subscriptions]
+  (doseq [subscription (apply concat (vals @subscriptions))]
+    (close! (:tuples-in subscription)))
+  (reset! subscriptions {}))
+
+(def ^:private max-batch-size 256)
+
+(defn- batchable? [request]
+  (or (contains? request :store)
+      (contains? request :set-attribute)))
+
+(defn- drain-batch!
+  "Takes the batchable requests already pending after the first one, without
+   waiting. Returns the batch and the non-batchable request that ended it, if any."
+  [requests first-request]
+  (loop [batch [first-request]]
+    (if (= (count batch) max-batch-size)
+      [batch nil]
+      (let [[request _] (alts!! [requests] :default nil)]
+        (cond
+          (nil? request)        [batch nil]
+          (batchable? request)  (recur (conj batch request))
+          :else                 [batch request])))))
+
+(defn- write-batch!
+  "Applies the batch in a single transaction, assigning ids in request order.
+   Attributes set more than once in the batch are written only once, with
+   their last value. Returns the stored tuple (or nil) for each store request,
+   the next id and the attribute values written."
+  [db parties batch next-tuple-id]
+  (db-transaction
+    db
+    #(loop [[request & more] batch
+            next-tuple-id next-tuple-id
+            stored []
+            attributes {}]
+       (if (nil? request)
+         (do
+           (doseq [[[tuple-id attribute] value] attributes]
+             (set-attr! db attribute value tuple-id))
+           [stored next-tuple-id attributes])
+         (match request
+           {:store tuple}
+           (let [tuple (store! db parties (:uniqueness request) next-tuple-id tuple)]
+             (recur more
+                    (cond-> next-tuple-id tuple inc)
+                    (conj stored [request tuple])
+                    attributes))
+
+           {:set-attribute attribute :value value :tuple-id tuple-id}
+           (recur more
+                  next-tuple-id
+                  stored
+                  (assoc attributes [tuple-id attribute] value)))))))
+
+(defn- handle-batch!
+  "Replies to the store requests, caches the stored tuples and notifies
+   subscriptions only after the batch is committed, so that readers always
+   find what they are told about."
+  [db parties high-water subscriptions attribute-cache tuple-cache batch next-tuple-id]
+  (let [[stored next-tuple-id' attributes]
+        (try
+          (write-batch! db parties batch next-tuple-id)
+          (catch Exception e
+            (println "write-batch! failed:" e)
+            (SystemReport/updateReport "database/error" e)
+            (reset! parties (load-parties db))            ; Parties added by the batch were rolled back.
+            [(for [request batch :when (contains? request :store)] [request nil])
+             next-tuple-id]))]
+    (swap! tuple-cache tuple-cache/stored matches? (dec next-tuple-id) (dec next-tuple-id') (keep second stored))
+    (reset! high-water (dec next-tuple-id'))
+    (swap! attribute-cache #(reduce-kv cache/miss % attributes))
+    (doseq [[{:keys [tuple-out]} tuple] stored]
+      (when tuple
+        (notify-subscriptions! subscriptions tuple)
+        (>!! tuple-out tuple))
+      (close! tuple-out))
+    next-tuple-id'))
+
+(defn- handle-request!
+  "Queries are streamed outside the server thread, up to the high water mark
+   as of the request, so they see every tuple stored before it."
+  [db parties high-water attribute-cache tuple-cache request]
   (match request
-    {:store tuple :tuple-out tuple-out}
-    (try
-      (when-let [tuple (store! db (:uniqueness request) next-tuple-id tuple)]
-        (go-trace (>! new-tuples tuple))
-        (>!! tuple-out tuple)
-        true)
-      (finally
-        (close! tuple-out)))
-
     {:query criteria :tuples-out tuples-out}
-    (do (go-trace (>! tuples-out (query-tuples-from-db db criteria)))
-        nil)
-
-    {:set-attribute attribute :value value :tuple-id tuple-id}
-    (do (set-attr! db attribute value tuple-id)
-        nil)
+    (let [upto @high-water]
+      (go (<! (stream-tuples! db parties tuple-cache criteria (::after-id criteria) upto tuples-out))
+          (close! tuples-out)))
 
     {:get-attribute attribute :default-value default-value :tuple-id tuple-id :response-ch response-ch}
-    (do (go-trace (>! response-ch (get-attr! db attribute default-value tuple-id)))
-        nil)))
+    (let [value (get-attr! db attribute-cache attribute default-value tuple-id)]
+      (go-trace (>! response-ch value)))))
 
-(defn- server-loop [db requests new-tuples]
+(defn- server-loop
+  "Handles requests one at a time, except that consecutive pending store and
+   set-attribute requests are written together in a single transaction."
+  [db parties high-water requests subscriptions attribute-cache tuple-cache]
   (thread
-   (loop [next-tuple-id (-> db max-tuple-id inc)]
-     (when-some [request (<!! requests)]
-       (let [bump-id (handle-request! db new-tuples request next-tuple-id)]
-         (recur (cond-> next-tuple-id bump-id inc)))))))
-
-(defn create [db]
-  (setup db)
-
-  (let [new-tuples (dropping-chan)
-        new-tuples-mult (mult new-tuples)
-        requests (chan 1024)
-        running (server-loop db requests new-tuples)
+   (loop [next-tuple-id (inc @high-water)
+          pending nil]
+     (when-some [request (or pending (<!! requests))]
+       (if (batchable? request)
+         (let [[batch pending] (drain-batch! requests request)]
+           (recur (handle-batch! db parties high-water subscriptions attribute-cache tuple-cache batch next-tuple-id)
+                  pending))
+         (do
+           (handle-request! db parties high-water attribute-cache tuple-cache request)
+           (recur next-tuple-id nil)))))))
+
+(defn- catch-up!
+  "Streams the tuples stored after the `seen` id onto tuples-out. Returns a
+   channel that emits the id up to which every stored tuple has been considered."
+  [db parties tuple-cache high-water criteria seen tuples-out]
+  (let [hw @high-water]
+    (go (<! (stream-tuples! db parties tuple-cache criteria seen hw tuples-out))
+        (max hw (or seen 0)))))
+
+(defn- live-query
+  "Sends the tuples already stored to old-out and closes it, unless it is
+   new-out itself. Then subscribes criteria so that matching tuples are sent
+   to new-out as they are stored, until the lease emits or closes.
+   Notifications are numbered per subscription and never block the server
+   thread. When some are missed (the buffer slides under load) the gap is
+   detected when the next one arrives, and the database is queried only for
+   the ids between the last tuple seen and that one."
+  [db parties tuple-cache high-water subscriptions criteria old-out new-out lease]
+  (let [tuples-in (sliding-chan live-buffer-size)
+        subscription {:criteria criteria :tuples-in tuples-in :sequence (atom 0)}]
+    (subscribe! subscriptions subscription)
+    (go (<! lease)
+        (unsubscribe! subscriptions subscription)
+        (close! tuples-in))
+    (go-trace
+      (let [seen (<! (catch-up! db parties tuple-cache high-water criteria (::after-id criteria) old-out))]
+        (when-not (identical? old-out new-out)
+          (close! old-out))
+        (loop [seen seen
+               expected 1]
+          (when-some [[n tuple] (<! tuples-in)]
+            (let [id (get tuple "id")]
+              (if (<= id seen)
+                (recur seen (inc n))
+                (when (and (or (= n expected)
+                               (<! (stream-tuples! db parties tuple-cache criteria seen (dec id) new-out)))
+                           (>! new-out tuple))
+                  (recur id (inc n)))))))))))
+
+(defn- start
+  "Starts a server loop over state, the part of a tuple base that outlives
+   restarts: the id sequence, the parties, the subscriptions and the caches."
+  [{:keys [db parties high-water subscriptions attribute-cache tuple-cache] :as state}]
+  (let [requests (chan 1024)
+        running (server-loop db parties high-water requests subscriptions attribute-cache tuple-cache)
+        restarted? (atom false)
+
+        stop!
+        (fn []
+          (close! requests)
+          (<!! running))
 
         post-store-tuple-request
         (fn [tuple uniqueness-criteria]
@@ -248,44 +778,15 @@
         (post-store-tuple-request tuple uniqueness-criteria))
 
       (query-tuples [_ criteria tuples-out]
-        (let [query-result (chan)]
-          (go
-            (when (>! requests {:query criteria :tuples-out query-result})
-              (let [tuples (<! query-result)]
-                (doseq [tuple tuples]
-                  (>! tuples-out tuple))))
+        (go
+          (when-not (>! requests {:query criteria :tuples-out tuples-out})
             (close! tuples-out))))
 
       (query-tuples [_ criteria tuples-out lease]
-        (let [new-tuples-in (dropping-tap new-tuples-mult)  ;TODO: Optimization: Transducer: Simply filter the new tuple using the criteria instead of rerunning the DB query. In that case, new-tuples can no longer be a dropping channel and needs a buffer (size 100?) (buffers are LinkedLists so they don't use up space when empty).
-              criteria (atom criteria)]
-          (go (<! lease)
-              (close! new-tuples-in))
-          (go-loop []
-            (do
-              (let [tuples (query-tuples-from-db db @criteria)]
-                (when-not (empty? tuples)
-                  (doseq [tuple tuples]
-                    (>! tuples-out tuple))
-                  (swap! criteria assoc ::after-id (-> tuples last (get "id")))))
-              (when (<! new-tuples-in)
-                (recur))))))
-
-      (query-with-history [_ criteria old-out new-out lease] ;TODO: DRY: Very similar to the query-tuples fn.
-        (let [new-tuples-in (dropping-tap new-tuples-mult)  ;TODO: Optimization: Transducer: Simply filter the new tuple using the criteria instead of rerunning the DB query. In that case, new-tuples can no longer be a dropping channel and needs a buffer (size 100?) (buffers are LinkedLists so they don't use up space when empty).
-              criteria (atom criteria)]
-          (go (<! lease)
-              (close! new-tuples-in))
-          (go-loop [tuples-out old-out]
-            (do
-              (let [tuples (query-tuples-from-db db @criteria)]
-                (when-not (empty? tuples)
-                  (doseq [tuple tuples]
-                    (>! tuples-out tuple))
-                  (swap! criteria assoc ::after-id (-> tuples last (get "id")))))
-              (close! old-out)
-              (when (<! new-tuples-in)
-                (recur new-out))))))
+        (live-query db parties tuple-cache high-water subscriptions criteria tuples-out tuples-out lease))
+
+      (query-with-history [_ criteria old-out new-out lease]
+        (live-query db parties tuple-cache high-water subscriptions criteria old-out new-out lease))
 
       (set-local-attribute [_ attribute value tuple-id]
         (>!! requests {:set-attribute attribute
@@ -298,22 +799,34 @@
                        :tuple-id tuple-id
                        :response-ch response-ch}))
 
-      (restarted [this]
-        (.close ^AutoCloseable this)
-        (create db))
+      (restarted [_]
+        ; Only the server loop is replaced. Live queries whose leases are
+        ; still open keep receiving tuples, from the new instance.
+        (stop!)
+        (reset! restarted? true)
+        (start state))
 
       AutoCloseable
       (close [_]
-        (close! requests)
-        (close! new-tuples)
-        (<!! running)))))
+        (stop!)
+        (when-not @restarted?
+          (close-subscriptions! subscriptions))))))
+
+(defn create [db]
+  (let [parties (setup db)]
+    (start {:db db
+            :parties parties
+            :high-water (atom (max-tuple-id db))
+            :subscriptions (atom {})
+            :attribute-cache (atom (cache/lru-cache-factory {} :threshold attribute-cache-size))
+            :tuple-cache (atom (tuple-cache/create nil {:index-key index-key :candidate-keys candidate-keys}))})))
 
 
 
 (defn timestamped [proto-tuple]
-  (let [max-size 1000]
+  (let [max-size (* 512 1024)]                              ; Tuples larger than a datagram are sent in fragments (see sneer.networking.fragments).
     (serialization/roundtrip (assoc proto-tuple "timestamp" (Clock/now)) max-size)))
 
 (defn store-sub [tuple-base own-puk criteria]
-  (let [sub {"type" "sub" "author" own-puk "criteria" criteria}]
-    (store-tuple tuple-base (timestamped sub) sub)))
\ No newline at end of file
+  (let [sub (timestamped {"type" "sub" "author" own-puk "criteria" criteria})]
+    (store-tuple tuple-base sub (sub-uniqueness sub))))
\ No newline at end of file
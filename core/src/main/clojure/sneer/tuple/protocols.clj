@@ -7,8 +7,9 @@
     [this tuple]
     [this tuple uniqueness-criteria]
     "Stores the tuple represented as map. When uniqueness-criteria is provided,
-     the tuple is stored only if a query by uniqueness-criteria returns an empty set.
-     Returns a channel that will emit the stored tuple if accepted and close.")
+     the tuple is stored only if no tuple was stored before with the same
+     uniqueness-criteria. Returns a channel that will emit the stored tuple if
+     accepted and close.")
 
   (query-tuples
     [this criteria tuples-out]
@@ -36,4 +37,11 @@
   (db-create-table [this table columns])
   (db-create-index [this table index-name column-names unique?])
   (db-insert [this table row])
-  (db-query [this sql-and-params]))
+  (db-query [this sql-and-params])
+  (db-execute
+    [this sql-and-params]
+    "Executes a statement that returns no rows, such as an UPDATE or DELETE.")
+  (db-transaction
+    [this f]
+    "Calls f within a single transaction, which is committed if f returns
+     normally and rolled back if it throws. Returns the result of f."))
@@ -0,0 +1,216 @@
+(ns sneer.tuple.tuple-cache
+  "Recent tuples kept in memory, by id and by the criteria that queried them,
+   so that views reopened shortly after being closed neither query the
+   database nor deserialize anything. Entries are evicted least recently used
+   first once their estimated size exceeds the budget."
+  (:import [sneer.commons SystemReport]
+           [java.util.concurrent.atomic AtomicLong]))
+
+(def default-budget-bytes (* 16 1024 1024))
+
+(def ^:private recent-tuples-per-criteria 1024)
+
+(def ^:private byte-array-class (Class/forName "[B"))
+
+(defn estimated-size
+  "Rough number of bytes a deserialized value takes in memory."
+  [x]
+  (cond
+    (instance? byte-array-class x) (+ 16 (alength ^bytes x))
+    (string? x) (+ 40 (* 2 (count x)))
+    (map? x) (reduce-kv (fn [size k v] (+ size 32 (estimated-size k) (estimated-size v))) 16 x)
+    (coll? x) (reduce #(+ %1 8 (estimated-size %2)) 16 x)
+    :else 24))
+
+(defn- tuples-size [tuples]
+  (reduce #(+ %1 (estimated-size %2)) 0 tuples))
+
+(defn- id [tuple]
+  (get tuple "id"))
+
+(defn create
+  "index-key gives the index key of criteria and candidate-keys the index keys
+   of all criteria that could match a tuple. Without them, every criteria
+   entry is a candidate for every tuple stored."
+  [& [budget-bytes {:keys [index-key candidate-keys]}]]
+  {:entries {}
+   :lru (sorted-map)
+   :bytes 0
+   :clock 0
+   :budget (or budget-bytes default-budget-bytes)
+   :index-key (or index-key (constantly nil))
+   :candidate-keys (or candidate-keys (constantly [nil]))
+   :criteria-index {}
+   :upto nil
+   :stats {:hits (AtomicLong.) :misses (AtomicLong.)}})
+
+(defn- touch [{:keys [clock] :as cache} key]
+  (let [previous (get-in cache [:entries key :touched])]
+    (-> cache
+        (update :lru dissoc previous)
+        (assoc-in [:lru clock] key)
+        (assoc-in [:entries key :touched] clock)
+        (update :clock inc))))
+
+(defn- indexed
+  "Applies f (conj or disj) to the criteria of key in the criteria index."
+  [{:keys [index-key] :as cache} [kind criteria] f]
+  (if (= :criteria kind)
+    (let [index-key (index-key criteria)
+          indexed (f (get-in cache [:criteria-index index-key] #{}) criteria)]
+      (if (empty? indexed)
+        (update cache :criteria-index dissoc index-key)
+        (assoc-in cache [:criteria-index index-key] indexed)))
+    cache))
+
+(defn- remove-entry [cache key]
+  (if-some [{:keys [touched bytes]} (get-in cache [:entries key])]
+    (-> cache
+        (update :entries dissoc key)
+        (update :lru dissoc touched)
+        (update :bytes - bytes)
+        (indexed key disj))
+    cache))
+
+(defn- evict [{:keys [lru bytes budget] :as cache}]
+  (if (and (> bytes budget) (seq lru))
+    (recur (remove-entry cache (val (first lru))))
+    cache))
+
+(defn- put-entry [cache key entry]
+  (-> cache
+      (remove-entry key)
+      (assoc-in [:entries key] entry)
+      (update :bytes + (:bytes entry))
+      (indexed key conj)
+      (touch key)
+      evict))
+
+(defn- report [{:keys [entries bytes stats]}]
+  (let [hits (.get ^AtomicLong (:hits stats))
+        misses (.get ^AtomicLong (:misses stats))]
+    (SystemReport/updateReport
+      "database/tuple-cache"
+      (str hits " hits, " misses " misses (" (quot (* 100 hits) (max 1 (+ hits misses))) "% hit rate), "
+           (count entries) " entries, " (quot bytes 1024) "KB"))))
+
+(defn count-hit! [cache-atom]
+  (when (zero? (bit-and (.incrementAndGet ^AtomicLong (get-in @cache-atom [:stats :hits])) 1023))
+    (report @cache-atom)))
+
+(defn count-miss! [cache-atom]
+  (when (zero? (bit-and (.incrementAndGet ^AtomicLong (get-in @cache-atom [:stats :misses])) 255))
+    (report @cache-atom)))
+
+;; By id
+
+(defn tuple-by-id [cache tuple-id]
+  (get-in cache [:entries [:id tuple-id] :tuple]))
+
+(defn put-tuple [cache tuple]
+  (put-entry cache [:id (id tuple)] {:tuple tuple :bytes (estimated-size tuple)}))
+
+;; By criteria
+;; An entry holds every tuple matching its criteria with an id in (after, upto].
+;; Entries complete up to the last batch stored have :latest as their upto, so
+;; that they follow the batches stored without being touched one by one.
+
+(defn- resolved [cache entry]
+  (cond-> entry (= :latest (:upto entry)) (assoc :upto (:upto cache))))
+
+(defn- latest-if-current [cache entry]
+  (cond-> entry (= (:upto entry) (:upto cache)) (assoc :upto :latest)))
+
+(defn- capped
+  "Keeps only the most recent tuples, moving after up to the last one dropped."
+  [{:keys [tuples] :as entry}]
+  (let [excess (- (count tuples) recent-tuples-per-criteria)]
+    (if (pos? excess)
+      (let [dropped (subvec tuples 0 excess)]
+        (assoc entry
+               :after (id (peek dropped))
+               :tuples (subvec tuples excess)
+               :bytes (- (:bytes entry) (tuples-size dropped))))
+      entry)))
+
+(defn covering
+  "The entry for criteria if it holds every tuple after the after-id, up to its own upto."
+  [cache criteria after-id]
+  (when-some [entry (some->> (get-in cache [:entries [:criteria criteria]]) (resolved cache))]
+    (when (<= (:after entry) (or after-id 0) (dec (:upto entry)))
+      entry)))
+
+(defn in-range
+  "The tuples of entry with an id in (after-id, upto], upto being optional."
+  [{:keys [tuples]} after-id upto]
+  (let [after-id (or after-id 0)]
+    (filterv #(let [i (id %)]
+                (and (> i after-id) (or (nil? upto) (<= i upto))))
+             tuples)))
+
+(defn touched [cache key]
+  (if (get-in cache [:entries key])
+    (touch cache key)
+    cache))
+
+(defn- merged [existing after upto tuples]
+  (let [{ea :after eu :upto et :tuples} existing]
+    (cond
+      (or (nil? existing) (and (<= after ea) (>= upto eu)))
+      {:after after :upto upto :tuples tuples}
+
+      (and (<= ea after eu) (> upto eu))
+      {:after ea :upto upto :tuples (into (filterv #(<= (id %) after) et) tuples)}
+
+      :else
+      nil)))
+
+(defn put-criteria
+  "Remembers that tuples are all the ones matching criteria with an id in
+   (after-id, upto], unless the entry already there is more recent."
+  [cache criteria after-id upto tuples]
+  (let [key [:criteria criteria]
+        existing (some->> (get-in cache [:entries key]) (resolved cache))]
+    (if-some [entry (merged existing (or after-id 0) upto (vec tuples))]
+      (put-entry cache key (capped (latest-if-current cache (assoc entry :bytes (tuples-size (:tuples entry))))))
+      cache)))
+
+(defn- caught-up
+  "Makes the entries complete up to previous-upto the latest ones when the
+   last batch stored did not end there, which only happens for the first one."
+  [cache previous-upto]
+  (if (= previous-upto (:upto cache))
+    cache
+    (-> (reduce-kv (fn [result key entry]
+                     (if (= :criteria (first key))
+                       (assoc-in result [:entries key] (latest-if-current {:upto previous-upto} (resolved cache entry)))
+                       result))
+                   cache
+                   (:entries cache))
+        (assoc :upto previous-upto))))
+
+(defn- appended [cache matches? tuples criteria]
+  (let [key [:criteria criteria]
+        entry (get-in cache [:entries key])
+        added (when (= :latest (:upto entry))
+                (filterv #(matches? criteria %) tuples))]
+    (if (seq added)
+      (let [appended (capped (-> entry
+                                 (update :tuples into added)
+                                 (update :bytes + (tuples-size added))))]
+        (-> cache
+            (assoc-in [:entries key] appended)
+            (update :bytes + (- (:bytes appended) (:bytes entry)))))
+      cache)))
+
+(defn stored
+  "Appends the tuples just stored, with ids in (previous-upto, upto], to the
+   entries they match that were complete up to previous-upto, and keeps them
+   by id. Only the entries indexed under the candidate keys of the tuples are
+   checked. Entries that were not complete are left as they are."
+  [cache matches? previous-upto upto tuples]
+  (let [cache (caught-up (reduce put-tuple cache tuples) previous-upto)
+        index (:criteria-index cache)
+        candidates (into #{} (comp (mapcat (:candidate-keys cache)) (mapcat index)) tuples)]
+    (evict (assoc (reduce #(appended %1 matches? tuples %2) cache candidates)
+                  :upto upto))))
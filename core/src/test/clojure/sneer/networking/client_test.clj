@@ -13,6 +13,14 @@
 
 (def tC {"id" 42 "author" :C :payload "42"})
 
+(def d1 {"id" 11 "author" :A :payload "11"})
+(def d2 {"id" 12 "author" :A :payload "12"})
+(def d3 {"id" 13 "author" :A :payload "13"})
+
+(def f1 {"id" 21 "author" :A :payload "21"})
+
+(def big {"id" 99 "author" :A "payload" (apply str (repeat 2000 "x"))})
+
 (let [packets-in (chan)
       packets-out (chan)
       tuples-received (chan)
@@ -20,14 +28,33 @@
       resend-timeout (chan)
       resend-timeout-fn (constantly resend-timeout)
       ack-ch (sliding-chan)
-      follower-chan #(->> (chan 2) (map> (fn [tuple] [tuple ack-ch])))
+      follower-chan (fn [& [acks]] (->> (chan 2) (map> (fn [tuple] [tuple (or acks ack-ch)]))))
       toB (follower-chan)
       toC (follower-chan)
-      toD (follower-chan)]
+      acksD (chan 10)
+      toD (follower-chan acksD)
+      resend-timeoutD (chan)
+      acksE (chan 10)
+      toE (follower-chan acksE)
+      acksF (chan 10)
+      toF (follower-chan acksF)
+      resend-timeoutF (chan)]
 
   (connect-to-follower subject :B toB resend-timeout-fn)
   (connect-to-follower subject :C toC resend-timeout-fn)
-  (connect-to-follower subject :D toD resend-timeout-fn)
+  (connect-to-follower subject :D toD (constantly resend-timeoutD))
+  (connect-to-follower subject :E toE (constantly (chan)))
+
+  (fact "Tuples in the window are still sent until acked after tuples-out closes"
+    (let [connection (connect-to-follower subject :F toF (constantly resend-timeoutF))]
+      (>!!? toF f1)
+      (<!!? packets-out) => {:from :A :send f1 :to :F}
+      (close! toF)
+      (>!!? resend-timeoutF :stimulus)
+      (<!!? packets-out) => {:from :A :send f1 :to :F}
+      (>!!? packets-in {:ack 21 :for :F})
+      (<!!? acksF) => f1
+      (<!!? connection) => nil))
   
   (fact "A tuple is sent"
     (>!!? toB t1)
@@ -51,9 +78,49 @@
   (fact "Next tuple is sent on :ack"
     (>!!? toB t2)
     (>!!? packets-in {:ack (get t1 "id") :for :B})
-    (<!!? packets-out) => {:from :A :send t2 :to :B})
+    (<!!? packets-out) => {:from :A :send t2 :to :B :prev [:A 1]})
 
   (fact "Bogus packet doesn't interfere with resend"
     (>!!? packets-in {:bogus true :for :B})
     (>!!? resend-timeout :stimulus)
-    (<!!? packets-out) => {:from :A :send t2 :to :B}))
+    (<!!? packets-out) => {:from :A :send t2 :to :B :prev [:A 1]})
+
+  (fact "Several tuples are sent before any ack"
+    (>!!? toD d1)
+    (>!!? toD d2)
+    (>!!? toD d3)
+    (<!!? packets-out) => {:from :A :send d1 :to :D}
+    (<!!? packets-out) => {:from :A :send d2 :to :D :prev [:A 11]}
+    (<!!? packets-out) => {:from :A :send d3 :to :D :prev [:A 12]})
+
+  (fact "Acks are delivered in the order tuples were sent"
+    (>!!? packets-in {:ack 12 :for :D})
+    (>!!? packets-in {:ack 11 :for :D})
+    (<!!? acksD) => d1
+    (<!!? acksD) => d2)
+
+  (fact "Only unacked tuples are resent"
+    (>!!? resend-timeoutD :stimulus)
+    (<!!? packets-out) => {:from :A :send d3 :to :D :prev [:A 12]})
+
+  (let [fragments (atom nil)]
+    (fact "A tuple too large for a datagram is sent in fragments"
+      (>!!? toE big)
+      (reset! fragments (vec (repeatedly 3 #(<!!? packets-out))))
+      (map #(get-in % [:send "id"]) @fragments) => [[99 0] [99 1] [99 2]]
+      (map :prev @fragments) => [nil [:A [99 0]] [:A [99 1]]])
+
+    (fact "A fragmented tuple is acked when all its fragments are"
+      (doseq [i [0 1 2]]
+        (>!!? packets-in {:ack [99 i] :for :E}))
+      (<!!? acksE) => big)
+
+    (fact "Fragments are reassembled into the tuple"
+      (let [[f0 f1 f2] (map :send @fragments)]
+        (>!!? packets-in {:send f0})
+        (<!!? packets-out) => {:from :A :ack :A :id [99 0]}
+        (>!!? packets-in {:send f2})
+        (<!!? packets-out) => {:from :A :ack :A :id [99 2]}
+        (>!!? packets-in {:send f1})
+        (<!!? tuples-received) => big
+        (<!!? packets-out) => {:from :A :ack :A :id [99 1]}))))
@@ -0,0 +1,71 @@
+(ns sneer.networking.fragments-test
+  (:require [midje.sweet :refer :all]
+            [sneer.networking.fragments :refer :all]))
+
+(def small {"id" 1 "author" :A "payload" "hi"})
+(def large {"id" 2 "author" :A "payload" (apply str (repeat 5000 "x"))})
+
+(defn- reassemble [state fragments]
+  (reduce (fn [[state received] fragment]
+            (let [[state tuple] (reassembled state fragment)]
+              [state (cond-> received tuple (conj tuple))]))
+          [state []]
+          fragments))
+
+(facts "About fragments"
+  (fact "Small tuples are not fragmented"
+    (fragmented small) => [small])
+
+  (fact "Large tuples are reassembled from their fragments in any order"
+    (let [fragments (fragmented large)]
+      (count fragments) => 7
+      (second (reassemble reassembly (shuffle fragments))) => [large]))
+
+  (fact "Fragments resent after reassembly are ignored"
+    (let [fragments (fragmented large)
+          [state _] (reassemble reassembly fragments)
+          [state received] (reassemble state (take 3 fragments))]
+      received => []
+      (:incomplete state) => {}
+      (:size state) => 0))
+
+  (tabular "Malformed fragments are dropped"
+    (fact
+      (let [fragment (merge (first (fragmented large)) ?change)]
+        (reassembled reassembly fragment) => [reassembly nil]))
+    ?change
+    {"fragment-count" nil}
+    {"fragment-count" "7"}
+    {"fragment-count" 0}
+    {"id" 2}
+    {"id" [2 -1]}
+    {"id" [2 7]}
+    {"id" [2 "0"]}
+    {"fragment" [1 2 3]}
+    {"fragment" (byte-array 1000)})
+
+  (fact "Fragments disagreeing on the fragment count do not complete a tuple"
+    (let [[f0 f1] (fragmented large)
+          [state _] (reassembled reassembly f0)]
+      (reassembled state (assoc f1 "fragment-count" 2)) => [state nil]))
+
+  (fact "Fragments that do not join into a tuple are dropped"
+    (let [garbage {"author" :A "id" [3 0] "fragment-count" 1 "fragment" (byte-array [1 2 3])}]
+      (second (reassembled reassembly garbage)) => nil))
+
+  (fact "Fragments starting a tuple there is no room for are refused until there is"
+    (with-redefs [max-reassembly-bytes (* 10 768)]
+      (let [other (assoc large "id" 3)
+            [f0 & more] (fragmented large)
+            [state _] (reassembled reassembly f0 0)]
+        (reassembled state (first (fragmented other)) 0) => nil
+        (let [[state received] (reassemble state more)]
+          received => [large]
+          (second (reassemble state (fragmented other))) => [other]))))
+
+  (fact "Tuples abandoned by their senders make room after a while"
+    (with-redefs [max-reassembly-bytes (* 10 768)]
+      (let [[state _] (reassembled reassembly (first (fragmented large)) 0)
+            other (first (fragmented (assoc large "id" 3)))]
+        (reassembled state other 1000) => nil
+        (-> (reassembled state other (* 6 60 1000)) first :incomplete keys) => [[:A 3]]))))
\ No newline at end of file
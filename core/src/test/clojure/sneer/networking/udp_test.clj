@@ -1,9 +1,11 @@
 (ns sneer.networking.udp-test
   (:require [midje.sweet :refer [fact]]
-            [sneer.networking.udp :refer [start-udp-server]]
+            [sneer.networking.udp :refer [start-udp-server probe batching-peers put-received!!]]
+            [sneer.serialization :as serialization]
             [sneer.test-util :refer :all]
-            [clojure.core.async :refer [chan >!! close!]])
-  (:import [java.net InetSocketAddress]))
+            [clojure.core.async :refer [chan >!! close! sliding-buffer]])
+  (:import [java.io ByteArrayInputStream]
+           [java.net DatagramPacket DatagramSocket InetSocketAddress SocketTimeoutException]))
 
 ; (do (require 'midje.repl) (midje.repl/autotest))
 
@@ -11,6 +13,8 @@
       loopback (chan)
       packets-out (chan)
       packets-in (chan)
+      batching-out (chan)
+      batching-in (chan)
       localhost (InetSocketAddress. "localhost" echo-port)
       echo (fn [string]
              (assert
@@ -20,12 +24,61 @@
     
    (start-udp-server loopback loopback echo-port)
    (start-udp-server packets-in packets-out)
+   (start-udp-server batching-in batching-out)
     
    (fact "Packets are sent and received"
      (echo "Chance for loopback server to start.")
      (echo "Hello") => "Hello"
      (echo "42") => "42"
      (echo "Goodbye") => "Goodbye")
-   
+
+   (fact "Packets sent together are received in order, before and after batches are negotiated"
+     (dotimes [_ 2]
+       (doseq [string ["one" "two" "three"]]
+         (>!!? batching-out [localhost (.getBytes ^String string)]))
+       (->> (repeatedly 3 #(<!!? batching-in))
+            (map (comp #(String. ^bytes %) second))) => ["one" "two" "three"]))
+
    (close! loopback)
-   (close! packets-out))
\ No newline at end of file
+   (close! packets-out)
+   (close! batching-out))
+
+(fact "Values are packed into as few datagrams as fit the MTU"
+  (let [pack #'sneer.networking.udp/pack
+        small (range 10)
+        large (repeat 3 (apply str (repeat 600 "x")))]
+    (pack small) => [{:batch small}]
+    (pack [42]) => [42]
+    (map #(count (:batch % [%])) (pack large)) => [2 1]))
+
+(fact "Peers that do not understand batches get packets one by one, in JSON"
+  (let [old-peer (doto (DatagramSocket. 1026) (.setSoTimeout 500))
+        packets-out (chan)
+        received (fn []
+                   (let [datagram (DatagramPacket. (byte-array 1400) 1400)]
+                     (try
+                       (.receive old-peer datagram)
+                       (serialization/read (serialization/reader (ByteArrayInputStream. (.getData datagram) 0 (.getLength datagram)))) ; JSON only.
+                       (catch SocketTimeoutException _ :timeout))))]
+    (try
+      (start-udp-server (chan) packets-out)
+      (dotimes [_ 2]
+        (doseq [string ["one" "two" "three"]]
+          (>!!? packets-out [(InetSocketAddress. "localhost" 1026) string])))
+      (->> (repeatedly received)
+           (take-while #(not= % :timeout))
+           (remove #{probe})) => ["one" "two" "three" "one" "two" "three"]
+      (finally
+        (close! packets-out)
+        (.close old-peer)))))
+(fact "Peers not heard from in a long while are forgotten first"
+  (let [peers (batching-peers)
+        packets-in (chan (sliding-buffer 1))
+        receive #(put-received!! packets-in peers [(InetSocketAddress. "localhost" %1) %2])]
+    (receive 1 {:batch [42]}) => [(InetSocketAddress. "localhost" 1) probe :json]
+    (receive 2 {:batch [42]})
+    (doseq [port (range 3 4098)]
+      (receive 1 42)
+      (receive port {:batch [42]}))
+    (receive 1 {:batch [42]}) => nil
+    (receive 2 {:batch [42]}) => [(InetSocketAddress. "localhost" 2) probe :json]))
@@ -0,0 +1,38 @@
+(ns sneer.serialization-benchmark
+  "Compares the size and encoding/decoding time of the serialization formats
+   on typical tuples. Run with: lein run -m sneer.serialization-benchmark"
+  (:require [sneer.serialization :refer [serialize deserialize]]
+            [sneer.keys :refer [->puk]]))
+
+(def neide (->puk "neide"))
+(def carla (->puk "carla"))
+
+(def sample-tuples
+  {"message"         {"type" "message" "author" neide "audience" carla "id" 4242 "original_id" 4242
+                      "timestamp" 1445000000000 "message-type" "chat" "label" "Hi Carla! Are we still on for lunch tomorrow?"}
+   "contact"         {"type" "contact" "author" neide "audience" neide "payload" "Carla" "party" carla
+                      "timestamp" 1445000000000 "id" 17}
+   "session-message" {"type" "session-message" "author" neide "audience" carla "session-author" neide
+                      "session-id" 1234 "payload" {"move" [3 4] "player" "x"} "timestamp" 1445000000000 "id" 4243}
+   "sub"             {"type" "sub" "author" neide "criteria" {"type" "message" "audience" neide}
+                      "timestamp" 1445000000000 "id" 18}})
+
+(defn- nanos-per-op [n f]
+  (dotimes [_ n] (f)) ; Warm up
+  (let [t0 (System/nanoTime)]
+    (dotimes [_ n] (f))
+    (quot (- (System/nanoTime) t0) n)))
+
+(defn measure [tuple encoding n]
+  (let [^bytes bytes (serialize tuple encoding)]
+    {:bytes (alength bytes)
+     :encode-ns (nanos-per-op n #(serialize tuple encoding))
+     :decode-ns (nanos-per-op n #(deserialize bytes))}))
+
+(defn -main [& [n]]
+  (let [n (if n (Integer/parseInt n) 10000)]
+    (println "tuple           format   bytes  encode(ns)  decode(ns)")
+    (doseq [[label tuple] sample-tuples
+            encoding [:json :msgpack]]
+      (let [{:keys [bytes encode-ns decode-ns]} (measure tuple encoding n)]
+        (println (format "%-15s %-8s %5d  %10d  %10d" label (name encoding) bytes encode-ns decode-ns))))))
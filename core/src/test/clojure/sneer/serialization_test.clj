@@ -0,0 +1,33 @@
+(ns sneer.serialization-test
+  (:require [midje.sweet :refer :all]
+            [sneer.serialization :refer [serialize serialized-size deserialize roundtrip]]
+            [sneer.serialization-benchmark :refer [sample-tuples]]))
+
+; (do (require 'midje.repl) (midje.repl/autotest))
+
+(facts "About serialization"
+  (doseq [[_ tuple] sample-tuples]
+
+    (fact "Values survive both formats"
+      (deserialize (serialize tuple)) => tuple
+      (deserialize (serialize tuple :json)) => tuple)
+
+    (fact "MessagePack is smaller than JSON"
+      (< (count (serialize tuple)) (count (serialize tuple :json))) => true)
+
+    (fact "Size can be measured without serializing"
+      (serialized-size tuple) => (count (serialize tuple))
+      (serialized-size tuple :json) => (count (serialize tuple :json))))
+
+  (fact "Values can be serialized while serializing another"
+    (let [lazy (map #(deserialize (serialize [%])) [1 2])]
+      (deserialize (serialize lazy)) => [[1] [2]]))
+
+  (fact "Blobs are read up to the given length"
+    (let [bytes (serialize "hello")
+          padded (byte-array (+ (count bytes) 10) bytes)]
+      (deserialize padded (count bytes)) => "hello"))
+
+  (fact "Roundtrip enforces a maximum size"
+    (roundtrip "hello" 100) => "hello"
+    (roundtrip (apply str (repeat 200 "x")) 100) => (throws Exception)))
@@ -5,6 +5,8 @@
             [midje.sweet :refer :all]
             [clojure.core.async :as async :refer [chan]]
             [sneer.tuple.jdbc-database :as jdbc-database]
+            [clojure.java.jdbc :as sql]
+            [sneer.serialization :refer [serialize]]
             [sneer.keys :refer [->puk]]))
 
 ; (do (require 'midje.repl) (midje.repl/autotest))
@@ -51,6 +53,24 @@
         (store-tuple subject t t)
         (query-unique) => [{"type" "unique"}]))))
 
+(facts "About batched writes"
+  (with-open [db (jdbc-database/create-sqlite-db)
+              subject (create db)]
+    (let [replies (doall (for [i (range 50)]
+                           (store-tuple subject {"type" "batched" "author" neide "payload" i})))
+          duplicate (store-tuple subject {"type" "batched" "author" neide "id" 1})]
+
+      (fact "Each store request gets its own reply, with ids in request order"
+        (->> replies (map <!!?) (map #(get % "payload"))) => (range 50)
+        (->> replies (map <!!?)) => (repeat 50 nil)
+        (<!!? duplicate) => nil)
+
+      (fact "Attributes set in a batch are visible afterwards"
+        (set-local-attribute subject :batched 42 1)
+        (let [response (chan)]
+          (get-local-attribute subject :batched :null 1 response)
+          (<!!? response) => 42)))))
+
 (facts "About query-tuples"
   (with-open [db (jdbc-database/create-sqlite-db)
               subject (create db)]
@@ -123,6 +143,19 @@
   {"original_id" 42}                                 {"payload" "n" "original_id" 42}
   {"custom-field" "urgent"}                          {"payload" "hello carla"})
 
+(facts "About large custom fields"
+  (with-open [db (jdbc-database/create-sqlite-db)
+              subject (create db)]
+    (let [label (apply str (repeat 200 "x"))]
+      (<!!? (store-tuple subject {"type" "large" "author" neide "label" label "jpeg-image" (byte-array 1000) "short" "s"}))
+
+      (fact "They are left out of the field table"
+        (->> (db-query db ["SELECT name FROM tuple_field"]) next (map first)) => ["short"])
+
+      (fact "Criteria on them are still matched"
+        (->> (<!!? (query-all subject {"label" label "short" "s"})) (map #(get % "type"))) => ["large"]
+        (<!!? (query-all subject {"label" "other"})) => []))))
+
 (facts "About :last-by-id query criterion"
   (with-open [db (jdbc-database/create-sqlite-db)
               subject (create db)]
@@ -168,4 +201,289 @@
         (fact "value can be updated"
           (set-local-attribute subject :some-tag "foo" tuple-id)
           (get-local-attribute subject :some-tag :null tuple-id attr-response)
-          (<!!? attr-response) => "foo")))))
+          (<!!? attr-response) => "foo")
+
+        (fact "only the latest value is kept"
+          (dotimes [i 10]
+            (set-local-attribute subject "counter" i tuple-id))
+          (get-local-attribute subject "counter" :null tuple-id attr-response)
+          (<!!? attr-response) => 9
+          (-> (db-query db ["SELECT COUNT(*) FROM attribute WHERE tuple_id = ? AND attribute = ?" tuple-id "counter"]) second first) => 1)))))
+
+(facts "About attributes appended by earlier versions"
+  (let [file (doto (java.io.File/createTempFile "sneer-test" ".sqlite") .deleteOnExit)
+        db-spec {:connection-uri (str "jdbc:sqlite:" (.getAbsolutePath file))}]
+    (with-open [db (jdbc-database/create-sqlite-db file)
+                subject (create db)])
+    (sql/db-do-commands db-spec "DROP INDEX idx_attribute_key")
+    (doseq [[tuple-id value] [[1 "a"] [1 "b"] [2 "x"] [1 "c"]]]
+      (sql/insert! db-spec :attribute {:tuple_id tuple-id :attribute "tag" :value (serialize value)}))
+
+    (with-open [db (jdbc-database/create-sqlite-db file)
+                subject (create db)]
+      (fact "They are compacted to the latest value"
+        (let [response (chan)]
+          (get-local-attribute subject "tag" :null 1 response)
+          (<!!? response) => "c"
+          (get-local-attribute subject "tag" :null 2 response)
+          (<!!? response) => "x"
+          (-> (db-query db ["SELECT COUNT(*) FROM attribute"]) second first) => 2)))))
+
+(facts "About live queries"
+  (with-open [db (jdbc-database/create-sqlite-db)
+              subject (create db)]
+    (let [lease (chan)]
+
+      (fact "New tuples are matched by custom fields"
+        (let [result (chan)]
+          (query-tuples subject {"type" "live" "topic" "b"} result lease)
+          (store-tuple subject {"type" "live" "author" neide "topic" "a" "payload" 1})
+          (store-tuple subject {"type" "live" "author" neide "topic" "b" "payload" 2})
+          (<!!? result) => (contains {"payload" 2 "topic" "b"})))
+
+      (fact "New tuples are routed by type, author and audience"
+        (let [by-author (chan)
+              by-audience (chan)
+              any (chan)]
+          (query-tuples subject {"type" "routed" "author" carla} by-author lease)
+          (query-tuples subject {"audience" michael} by-audience lease)
+          (query-tuples subject {"type" "routed"} any lease)
+          (store-tuple subject {"type" "routed" "author" neide "audience" michael "payload" 1})
+          (store-tuple subject {"type" "routed" "author" carla "payload" 2})
+          (<!!? by-author) => (contains {"payload" 2})
+          (<!!? by-audience) => (contains {"payload" 1})
+          (map #(get % "payload") [(<!!? any) (<!!? any)]) => [1 2]))
+
+      (fact "Tuples missed by a slow consumer are caught up in order"
+        (let [result (chan)
+              n 300]
+          (query-tuples subject {"type" "burst"} result lease)
+          (dotimes [i n]
+            (store-tuple subject {"type" "burst" "author" carla "payload" i}))
+          (<!!? (store-tuple subject {"type" "other" "author" carla}))
+          (->> (repeatedly n #(<!!? result))
+               (map #(get % "payload"))) => (range n)))
+
+      (async/close! lease))))
+
+(facts "About restarts"
+  (with-open [db (jdbc-database/create-sqlite-db)
+              subject (create db)]
+    (let [lease (chan)
+          live (chan)]
+      (query-tuples subject {"type" "restarted"} live lease)
+      (<!!? (store-tuple subject {"type" "restarted" "author" neide "payload" 1}))
+      (<!!? live) => (contains {"payload" 1})
+
+      (with-open [^java.lang.AutoCloseable again (restarted subject)]
+
+        (fact "Ids go on from where they were"
+          (<!!? (store-tuple again {"type" "restarted" "author" neide "payload" 2})) => (contains {"id" 2}))
+
+        (fact "Live queries keep receiving tuples"
+          (<!!? live) => (contains {"payload" 2})))
+
+      (async/close! lease))))
+
+(facts "About large histories"
+  (with-open [db (jdbc-database/create-sqlite-db)
+              subject (create db)]
+    (let [n 300]
+      (dotimes [i n]
+        (store-tuple subject {"type" "history" "author" neide "parity" (mod i 2) "payload" i}))
+      (<!!? (store-tuple subject {"type" "other" "author" neide}))
+
+      (fact "Queries stream every chunk in order"
+        (->> (<!!? (query-all subject {"type" "history"}))
+             (map #(get % "payload"))) => (range n))
+
+      (fact "Custom fields are filtered across chunks"
+        (->> (<!!? (query-all subject {"type" "history" "parity" 1 after-id 150}))
+             (map #(get % "payload"))) => (filter odd? (range 150 n)))
+
+      (fact "Live queries stream history to old-out before new tuples"
+        (let [old (chan)
+              new (chan)
+              lease (chan)]
+          (query-with-history subject {"type" "history"} old new lease)
+          (store-tuple subject {"type" "history" "author" neide "payload" n})
+          (count (<!!? (async/into [] old))) => n
+          (<!!? new) => (contains {"payload" n})
+          (async/close! lease))))))
+
+(defn- counting-queries [db queries]
+  (reify Database
+    (db-create-table [_ table columns] (db-create-table db table columns))
+    (db-create-index [_ table index-name column-names unique?] (db-create-index db table index-name column-names unique?))
+    (db-insert [_ table row] (db-insert db table row))
+    (db-query [_ sql-and-params] (swap! queries inc) (db-query db sql-and-params))
+    (db-execute [_ sql-and-params] (db-execute db sql-and-params))
+    (db-transaction [_ f] (db-transaction db f))))
+
+(facts "About the tuple cache"
+  (with-open [db (jdbc-database/create-sqlite-db)]
+    (let [queries (atom 0)
+          subject (create (counting-queries db queries))
+          payloads #(->> (<!!? (query-all subject %)) (map (fn [t] (get t "payload"))))]
+      (dotimes [i 10]
+        (store-tuple subject {"type" "cached" "author" neide "payload" i}))
+      (<!!? (store-tuple subject {"type" "other" "author" neide}))
+      (payloads {"type" "cached"}) => (range 10)
+
+      (fact "Queries repeated are answered from memory"
+        (reset! queries 0)
+        (payloads {"type" "cached"}) => (range 10)
+        (payloads {"type" "cached" after-id 5}) => (range 5 10)
+        @queries => 0)
+
+      (fact "Stored tuples are written through"
+        (<!!? (store-tuple subject {"type" "cached" "author" neide "payload" 10}))
+        (reset! queries 0)
+        (payloads {"type" "cached"}) => (range 11)
+        (payloads {"id" 3}) => [2]
+        @queries => 0)
+
+      (fact "Uniqueness sees tuples stored earlier in the same batch"
+        (let [t {"type" "unique-cached" "author" neide}]
+          (payloads t) => []
+          (store-tuple subject t t)
+          (<!!? (store-tuple subject t t))
+          (count (<!!? (query-all subject t))) => 1))
+
+      (.close ^java.lang.AutoCloseable subject))))
+
+(defn- failing-field-inserts [db]
+  (reify Database
+    (db-create-table [_ table columns] (db-create-table db table columns))
+    (db-create-index [_ table index-name column-names unique?] (db-create-index db table index-name column-names unique?))
+    (db-insert [_ table row]
+      (when (and (= table :tuple_field) (= (get row "name") "poison"))
+        (throw (RuntimeException. "Simulated failure")))
+      (db-insert db table row))
+    (db-query [_ sql-and-params] (db-query db sql-and-params))
+    (db-execute [_ sql-and-params] (db-execute db sql-and-params))
+    (db-transaction [_ f] (db-transaction db f))))
+
+(facts "About stores that fail halfway"
+  (with-open [db (jdbc-database/create-sqlite-db)
+              subject (create (failing-field-inserts db))]
+    (let [poisoned (store-tuple subject {"type" "halfway" "author" michael "poison" 1})
+          next-one (store-tuple subject {"type" "halfway" "author" michael "payload" "ok"})]
+
+      (fact "They leave no rows behind and do not use up their id"
+        (<!!? poisoned) => nil
+        (<!!? next-one) => (contains {"id" 1 "author" michael})
+        (<!!? (store-tuple subject {"type" "halfway" "author" carla})) => (contains {"id" 2})
+        (->> (<!!? (query-all subject {"type" "halfway"})) (map #(get % "payload"))) => ["ok" nil]))))
+
+(defn- query-plan [db criteria]
+  (let [[sql & params] (#'sneer.tuple.persistent-tuple-base/query-by-criteria (#'sneer.tuple.persistent-tuple-base/with-parties criteria (constantly 1)) 42 nil nil)]
+    (->> (db-query db (apply vector (str "EXPLAIN QUERY PLAN " sql) params))
+         next
+         (map last)
+         (clojure.string/join "; "))))
+
+(tabular "About query plans"
+  (fact "Hot query shapes search a composite index, in id order"
+    (with-open [db (jdbc-database/create-sqlite-db)
+                _ (create db)]
+      (let [plan (query-plan db ?criteria)]
+        (.contains plan (str "USING INDEX " ?index " (")) => true
+        (.contains plan "TEMP B-TREE") => false)))
+  ?criteria                                                ?index
+  {"type" "message" "author" neide "audience" carla}      "idx_tuple_type_author_audience"
+  {"audience" carla "author" neide "type" "message"}      "idx_tuple_type_author_audience"
+  {"type" "message" "author" neide}                       "idx_tuple_type_author"
+  {"type" "message" "audience" carla}                     "idx_tuple_type_audience")
+
+(facts "About parties"
+  (let [file (doto (java.io.File/createTempFile "sneer-test" ".sqlite") .deleteOnExit)]
+    (sql/db-do-commands {:connection-uri (str "jdbc:sqlite:" (.getAbsolutePath file))}
+                        "CREATE TABLE tuple (id INTEGER PRIMARY KEY, type VARCHAR NOT NULL, payload BLOB, timestamp TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, author BLOB NOT NULL, original_id INTEGER NOT NULL, audience BLOB, custom BLOB)"
+                        "INSERT INTO tuple (id, type, author, original_id, audience) VALUES (1, 'legacy', X'6E65696465', 1, X'6361726C61')"
+                        "INSERT INTO tuple (id, type, author, original_id) VALUES (2, 'legacy', X'6361726C61', 2)")
+    (with-open [db (jdbc-database/create-sqlite-db file)
+                subject (create db)]
+
+      (fact "Puks stored in tuple rows by earlier versions are moved to the party table"
+        (->> (<!!? (query-all subject {"type" "legacy" "author" neide}))
+             (map #(get % "audience"))) => [carla]
+        (->> (db-query db ["SELECT typeof(author), COUNT(*) FROM tuple GROUP BY typeof(author)"]) next) => [["integer" 2]])
+
+      (fact "New parties are added as tuples are stored"
+        (<!!? (store-tuple subject {"type" "legacy" "author" michael "audience" neide}))
+        (->> (<!!? (query-all subject {"audience" neide}))
+             (map #(get % "author"))) => [michael])
+
+      (fact "Equal puks share one instance"
+        (let [[t1 t2 t3] (<!!? (query-all subject {"type" "legacy"}))]
+          (identical? (get t1 "audience") (get t2 "author")) => true
+          (identical? (get t1 "author") (get t3 "audience")) => true)))))
+
+(fact "Ad-hoc queries beyond the statement cache size still run"
+  (with-open [db (jdbc-database/create-sqlite-db)]
+    (doseq [i (range 100)]
+      (db-query db [(str "SELECT " i)]))
+    (db-query db ["SELECT 0"]) => [[:0] [0]]))
+
+(facts "About file databases"
+  (let [file (doto (java.io.File/createTempFile "sneer-test" ".sqlite") .deleteOnExit)]
+    (with-open [db (jdbc-database/create-sqlite-db file)
+                subject (create db)]
+
+      (fact "Reads from pooled connections see committed writes"
+        (dotimes [i 10]
+          (store-tuple subject {"type" "filed" "author" neide "payload" i}))
+        (<!!? (store-tuple subject {"type" "other" "author" neide}))
+        (->> (repeatedly 8 #(future (<!!? (query-all subject {"type" "filed"}))))
+             doall
+             (map (comp count deref))) => (repeat 8 10)))
+
+    (with-open [db (jdbc-database/create-sqlite-db file)
+                subject (create db)]
+
+      (fact "Tuples survive reopening"
+        (count (<!!? (query-all subject {"type" "filed"}))) => 10))
+
+    (fact "Custom fields of tuples stored before the field table existed are indexed"
+      (with-open [db (jdbc-database/create-sqlite-db file)
+                  subject (create db)]
+        (<!!? (store-tuple subject {"type" "filed" "author" carla "topic" "old"})))
+      (sql/db-do-commands {:connection-uri (str "jdbc:sqlite:" (.getAbsolutePath file))}
+                          "DROP TABLE tuple_field")
+      (with-open [db (jdbc-database/create-sqlite-db file)
+                  subject (create db)]
+        (->> (<!!? (query-all subject {"topic" "old"}))
+             (map #(get % "author"))) => [carla]))
+
+    (fact "The type index of earlier versions is dropped"
+      (let [type-index-count #(with-open [db (jdbc-database/create-sqlite-db file)
+                                          _ (create db)]
+                                (-> (db-query db ["SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = 'idx_tuple_type'"]) second first))]
+        (type-index-count) => 0
+        (sql/db-do-commands {:connection-uri (str "jdbc:sqlite:" (.getAbsolutePath file))}
+                            "CREATE INDEX idx_tuple_type ON tuple(type)")
+        (type-index-count) => 0))
+
+    (fact "Subs stored before uniqueness keys existed stay unique"
+      (let [sub-count #(with-open [db (jdbc-database/create-sqlite-db file)
+                                   subject (create db)]
+                         (<!!? (store-sub subject neide {"type" "chat"}))
+                         (count (<!!? (query-all subject {"type" "sub"}))))]
+        (sub-count) => 1
+        (sql/db-do-commands {:connection-uri (str "jdbc:sqlite:" (.getAbsolutePath file))}
+                            "DROP INDEX idx_tuple_uniqueness_key"
+                            "UPDATE tuple SET uniqueness_key = NULL")
+        (sub-count) => 1
+        (sub-count) => 1))
+
+    (fact "Subs with values changed by serialization keep their uniqueness across the migration"
+      (let [sub-count #(with-open [db (jdbc-database/create-sqlite-db file)
+                                   subject (create db)]
+                         (<!!? (store-sub subject carla {"type" "chat" "weight" (float 1.5)}))
+                         (count (<!!? (query-all subject {"type" "sub" "author" carla}))))]
+        (sub-count) => 1
+        (sql/db-do-commands {:connection-uri (str "jdbc:sqlite:" (.getAbsolutePath file))}
+                            "DROP INDEX idx_tuple_uniqueness_key"
+                            "UPDATE tuple SET uniqueness_key = NULL")
+        (sub-count) => 1))))
@@ -20,8 +20,16 @@
         follower-connections (chan)
         connect-to-follower (fn [follower-puk tuples-out]
                               (go (>! follower-connections {follower-puk tuples-out})))
-        tuples-for! (fn [follower-puk]
-                      (get (<!!? follower-connections 500) follower-puk))]
+        connections (atom {})
+        tuples-for! (fn [follower-puk]                    ; Followers may be connected in any order.
+                      (loop []
+                        (if-some [tuples-out (get @connections follower-puk)]
+                          (do (swap! connections dissoc follower-puk)
+                              tuples-out)
+                          (let [connection (<!!? follower-connections 500)]
+                            (when (map? connection)
+                              (swap! connections merge connection)
+                              (recur))))))]
     {:tuples-in tuples-in
      :connect-to-follower connect-to-follower
      :tuples-for! tuples-for!}))
@@ -0,0 +1,70 @@
+(ns sneer.tuple.tuple-cache-test
+  (:require [midje.sweet :refer :all]
+            [sneer.tuple.tuple-cache :refer :all]))
+
+(defn- tuple [id type]
+  {"id" id "type" type "payload" (apply str (repeat 100 "x"))})
+
+(defn- matches-type? [criteria t]
+  (= (get criteria "type") (get t "type")))
+
+(defn- ids [tuples]
+  (map #(get % "id") tuples))
+
+(facts "About the tuple cache"
+  (let [cache (put-criteria (create) {"type" "a"} nil 3 [(tuple 1 "a") (tuple 3 "a")])]
+
+    (fact "Entries cover queries from their start to their upto"
+      (ids (in-range (covering cache {"type" "a"} nil) nil nil)) => [1 3]
+      (ids (in-range (covering cache {"type" "a"} 1) 1 nil)) => [3]
+      (covering cache {"type" "a"} 3) => nil
+      (covering cache {"type" "b"} nil) => nil)
+
+    (fact "Stored tuples are appended to the entries they match"
+      (let [cache (stored cache matches-type? 3 5 [(tuple 4 "b") (tuple 5 "a")])]
+        (ids (:tuples (covering cache {"type" "a"} nil))) => [1 3 5]
+        (:upto (covering cache {"type" "a"} nil)) => 5
+        (tuple-by-id cache 4) => (tuple 4 "b")))
+
+    (fact "Entries behind the stored tuples are left as they are"
+      (let [cache (stored cache matches-type? 7 8 [(tuple 8 "a")])]
+        (:upto (covering cache {"type" "a"} nil)) => 3))
+
+    (fact "Contiguous reads extend an entry"
+      (let [cache (put-criteria cache {"type" "a"} 3 6 [(tuple 6 "a")])]
+        (ids (:tuples (covering cache {"type" "a"} nil))) => [1 3 6]))
+
+    (fact "Stale reads do not replace a more recent entry"
+      (put-criteria cache {"type" "a"} nil 2 [(tuple 1 "a")]) => cache))
+
+  (fact "Entries the stored tuples could not match follow the batches without being checked"
+    (let [checked (atom [])
+          matches? (fn [criteria t] (swap! checked conj criteria) (matches-type? criteria t))
+          cache (-> (create nil {:index-key #(get % "type") :candidate-keys #(vector nil (get % "type"))})
+                    (put-criteria {"type" "a"} nil 3 [(tuple 1 "a")])
+                    (put-criteria {"type" "b"} nil 3 [(tuple 2 "b")])
+                    (stored matches? 3 4 [(tuple 4 "a")])
+                    (stored matches? 4 5 [(tuple 5 "a")]))]
+      @checked => [{"type" "a"} {"type" "a"}]
+      (:upto (covering cache {"type" "b"} nil)) => 5
+      (ids (:tuples (covering cache {"type" "a"} nil))) => [1 4 5]
+      (ids (:tuples (covering cache {"type" "b"} nil))) => [2]))
+
+  (fact "Only the most recent tuples of each criteria are kept"
+    (let [cache (put-criteria (create) {"type" "a"} nil 2000 (map #(tuple % "a") (range 1 2001)))
+          entry (covering cache {"type" "a"} 976)]
+      (count (:tuples entry)) => 1024
+      (:after entry) => 976
+      (covering cache {"type" "a"} nil) => nil))
+
+  (fact "The least recently used entries are evicted to fit the budget"
+    (let [size (estimated-size (tuple 1 "a"))
+          cache (-> (create (* 2 size))
+                    (put-tuple (tuple 1 "a"))
+                    (put-tuple (tuple 2 "a"))
+                    (touched [:id 1])
+                    (put-tuple (tuple 3 "a")))]
+      (tuple-by-id cache 1) => (tuple 1 "a")
+      (tuple-by-id cache 2) => nil
+      (tuple-by-id cache 3) => (tuple 3 "a")
+      (:bytes cache) => (* 2 size))))
@@ -26,4 +26,14 @@ public interface Database {
 	 */
 	Iterable<List<?>> query(String sql, List<Object> params);
 
+	/** Executes sql that returns no rows, such as an UPDATE or DELETE. */
+	void execute(String sql, List<Object> params);
+
+	/** Starts a transaction. Changes made until endTransaction() are only committed if setTransactionSuccessful() is called. */
+	void beginTransaction();
+
+	void setTransactionSuccessful();
+
+	void endTransaction();
+
 }
\ No newline at end of file
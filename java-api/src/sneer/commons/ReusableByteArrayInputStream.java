@@ -0,0 +1,26 @@
+package sneer.commons;
+
+import java.io.ByteArrayInputStream;
+
+/** A ByteArrayInputStream that can be pointed at other bytes, to be reused. */
+public class ReusableByteArrayInputStream extends ByteArrayInputStream {
+
+	private static final byte[] EMPTY = new byte[0];
+
+	public ReusableByteArrayInputStream() {
+		super(EMPTY);
+	}
+
+	public void reset(byte[] bytes, int offset, int length) {
+		buf = bytes;
+		pos = offset;
+		count = Math.min(offset + length, bytes.length);
+		mark = offset;
+	}
+
+	/** Lets go of the bytes last read. */
+	public void clear() {
+		reset(EMPTY, 0, 0);
+	}
+
+}
@@ -0,0 +1,27 @@
+package sneer.commons;
+
+import java.io.ByteArrayOutputStream;
+
+/** A ByteArrayOutputStream that can be reused and whose contents can be read without copying. */
+public class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+	private final int initialSize;
+
+	public ReusableByteArrayOutputStream(int initialSize) {
+		super(initialSize);
+		this.initialSize = initialSize;
+	}
+
+	/** The internal buffer. Only the first size() bytes are valid, until the next write or reset. */
+	public byte[] buffer() {
+		return buf;
+	}
+
+	/** Same as reset() but also lets go of the buffer if a large value has grown it beyond maxRetained. */
+	public void reset(int maxRetained) {
+		reset();
+		if (buf.length > maxRetained)
+			buf = new byte[initialSize];
+	}
+
+}
@@ -1,10 +1,9 @@
 (ns sneer.server.main
-  (:require [sneer.networking.udp :as udp]
+  (:require [sneer.server.nio-udp :as udp]
             [sneer.server.router-connector :as connector]
             [sneer.server.http-server :as http-server]
             [sneer.async :refer [go-trace go-while-let]]
-            [clojure.core.async :as async :refer [chan filter< close! alts!! <! <!! timeout]]
-            [sneer.networking.udp :as udp])
+            [clojure.core.async :as async :refer [chan filter< close! alts!! <! <!! timeout]])
   (:import [java.io File])
   (:gen-class))
 
@@ -0,0 +1,156 @@
+(ns sneer.server.nio-udp
+  (:require [sneer.networking.udp :as udp]
+            [sneer.serialization :refer [serialize-into! deserialize]]
+            [sneer.commons :refer [while-let]]
+            [clojure.core.async :as async :refer [<!!]])
+  (:import [java.net InetSocketAddress SocketAddress]
+           [java.nio ByteBuffer]
+           [java.nio.channels ClosedChannelException DatagramChannel SelectionKey Selector]
+           [java.util.concurrent ArrayBlockingQueue BlockingQueue TimeUnit]
+           [java.util.concurrent.atomic AtomicLong]
+           [sneer.commons SystemReport]))
+
+(def ^:private max-datagram-size 65536)
+
+(def ^:private queue-capacity
+  "Datagrams waiting to be put into packets-in, and datagrams waiting to be sent."
+  4096)
+
+(defn- open-key [^Selector selector port]
+  (when port (println "Opening port" port))
+  (let [channel (DatagramChannel/open)]
+    (try
+      (doto channel
+        (.configureBlocking false)
+        (.bind ^SocketAddress (when port (InetSocketAddress. (int port)))))
+      (.register channel selector SelectionKey/OP_READ)
+      (catch Exception e
+        (.close channel)
+        (udp/on-open-error e)
+        nil))))
+
+(defn- close-key [port ^SelectionKey key]
+  (when key
+    (when port (println "Closing port" port))
+    (.cancel key)
+    (try
+      (.close (.channel key))
+      (catch Exception _ :ignored))))
+
+(defn- count-dropped! [^AtomicLong dropped]
+  (let [n (.incrementAndGet dropped)]
+    (when (or (= n 1) (zero? (mod n 1000)))
+      (SystemReport/updateReport "network/udp-dropped-in" (str n " datagrams dropped because packets-in was full")))))
+
+(defn- receive-all!
+  "Drains the datagrams waiting in the channel, queueing their values for
+   packets-in. Never blocks: when the queue is full, datagrams are dropped
+   and counted, as the network itself would."
+  [^DatagramChannel channel ^ByteBuffer buffer ^bytes bytes ^BlockingQueue incoming dropped]
+  (loop []
+    (.clear buffer)
+    (when-some [address (.receive channel buffer)]
+      (.flip buffer)
+      (let [length (.remaining buffer)]
+        (.get buffer bytes 0 length)
+        (when-some [value (try
+                            (deserialize bytes length)
+                            (catch Exception e
+                              (println "Dropping undecodable datagram from" address (.getMessage e))))]
+          (when-not (.offer incoming [address value])
+            (count-dropped! dropped))))
+      (recur))))
+
+(defn- flush!
+  "Sends queued [address value format] triples until the queue is empty or
+   the channel cannot take more. Returns whether the queue was emptied."
+  [^DatagramChannel channel ^ByteBuffer buffer ^BlockingQueue outgoing]
+  (loop []
+    (if-some [[^SocketAddress address value format] (.peek outgoing)]
+      (let [sent? (try
+                    (.clear buffer)
+                    (serialize-into! value buffer format)
+                    (.flip buffer)
+                    (pos? (.send channel buffer address))
+                    (catch ClosedChannelException e
+                      (throw e))
+                    (catch Exception e                       ; Such as an unreachable or invalid destination. The channel is fine.
+                      (println "Dropping unsendable packet to" address (.getMessage e))
+                      true))]
+        (when sent?
+          (.poll outgoing)
+          (recur)))
+      true)))
+
+(defn- serve!
+  "Waits for the channel to become readable, or writable when there are
+   datagrams left to flush, and for the wakeups of new packets to send."
+  [^Selector selector ^SelectionKey key receive-buffer send-buffer bytes incoming dropped outgoing]
+  (let [channel (.channel key)]
+    (.select selector)
+    (.clear (.selectedKeys selector))
+    (receive-all! channel receive-buffer bytes incoming dropped)
+    (.interestOps key (if (flush! channel send-buffer outgoing)
+                        SelectionKey/OP_READ
+                        (bit-or SelectionKey/OP_READ SelectionKey/OP_WRITE)))))
+
+(defn start-udp-server
+  "Same contract as sneer.networking.udp/start-udp-server, but on a single
+  non-blocking DatagramChannel. One thread drains every datagram available at
+  each wakeup and flushes the packets queued to send, reusing the same direct
+  buffers throughout. It never blocks on packets-in: another thread puts the
+  received values there from a bounded queue, and datagrams that do not fit
+  in it are dropped. Another thread takes packets from packets-out, batches
+  them and queues them to send, waiting while that bounded queue is full.
+  Server will stop when packets-out is closed. Returns a channel that closes
+  when it stops."
+  [packets-in packets-out & [port]]
+
+  (let [selector (Selector/open)
+        outgoing (ArrayBlockingQueue. queue-capacity)
+        incoming (ArrayBlockingQueue. queue-capacity)
+        dropped (AtomicLong.)
+        closed? (atom false)
+        batching-peers (udp/batching-peers)]
+
+    (async/thread
+      (while-let [packet (<!! packets-out)]
+        (doseq [datagram (udp/->datagram-values (udp/take-pending!! packets-out packet) batching-peers)]
+          (.wakeup selector)
+          (.put outgoing datagram))
+        (.wakeup selector))
+      (reset! closed? true)
+      (.wakeup selector))
+
+    (async/thread
+      (loop []
+        (if-some [packet (.poll incoming 100 TimeUnit/MILLISECONDS)]
+          (do (when-some [reply (udp/put-received!! packets-in batching-peers packet)]
+                (.offer outgoing reply)
+                (.wakeup selector))
+              (recur))
+          (when-not @closed?
+            (recur)))))
+
+    (async/thread
+      (let [receive-buffer (ByteBuffer/allocateDirect max-datagram-size)
+            send-buffer (ByteBuffer/allocateDirect max-datagram-size)
+            bytes (byte-array max-datagram-size)]
+        (loop [key nil]
+          (if @closed?
+            (do
+              (when key
+                (try
+                  (flush! (.channel ^SelectionKey key) send-buffer outgoing)
+                  (catch Exception _ :ignored)))
+              (close-key port key)
+              (.close selector))
+            (if-some [key (or key (open-key selector port))]
+              (recur (try
+                       (serve! selector key receive-buffer send-buffer bytes incoming dropped outgoing)
+                       key
+                       (catch Exception e
+                         (println (.getMessage e))
+                         (close-key port key)
+                         nil)))
+              (recur nil))))))))
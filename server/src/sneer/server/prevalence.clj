@@ -1,15 +1,28 @@
 (ns sneer.server.prevalence
   (:refer-clojure :exclude [write read])
   (:require
-    [sneer.serialization :refer [write writer read reader]]
+    [sneer.serialization :refer [write writer read reader serialize deserialize]]
     [sneer.commons :refer :all])
   (:import
-   [java.io File FileOutputStream FileInputStream]))
+   [java.io File FileOutputStream FileInputStream BufferedOutputStream BufferedInputStream DataOutputStream]
+   [java.nio ByteBuffer]
+   [java.nio.channels FileChannel FileChannel$MapMode]
+   [java.nio.file OpenOption StandardOpenOption]
+   [java.util.zip CRC32]
+   [java.util.concurrent ExecutorService Executors ThreadFactory TimeUnit]))
 
 (defprotocol Prevayler
   (handle! [_ event])
   (close! [_]))
 
+(def default-options
+  {:sync            :flush  ; :flush each event to the OS, :fsync each event, or :group to flush and fsync every :sync-millis.
+   :sync-millis     50
+   :snapshot-events 100000  ; A snapshot is taken and a new journal started after this many events...
+   :snapshot-bytes  (* 64 1024 1024)}) ; ...or this many bytes of journal.
+
+(def ^:private buffer-size (* 64 1024))
+
 (defn- read-ignoring-exception [reader]
   (try
     (read reader)
@@ -22,13 +35,6 @@
 (defn replacement [file]
   (File. (str file ".replacement")))
 
-(defn- atomic-replace! [file content]
-  (let [^File rep (replacement file)]
-    (with-open [out (FileOutputStream. rep)]
-	    (write (writer out) content))
-    (archive file)
-    (assert (.renameTo rep file))))
-
 (defn- atomic-recover! [^File file]
   (let [^File rep (replacement file)]
     (when-not (.exists file)
@@ -37,6 +43,257 @@
           (.renameTo rep file)
           (.createNewFile file))))))
 
+; Files of a prevalence base file:
+;   base.<seq>.snapshot  The state before the events in journals <seq> and later.
+;   base.<seq>.journal   Events. Journals before the last snapshot are deleted.
+;   base                 Snapshot followed by events, from before there were segments.
+;
+(defn- segment-file [^File base seq kind]
+  (File. (str base "." seq "." (name kind))))
+
+(defn- segment-seqs [^File base kind]
+  (let [pattern (re-pattern (str "\\Q" (.getName base) "\\E\\.(\\d+)\\." (name kind)))]
+    (->> (.listFiles (.getParentFile (.getAbsoluteFile base)))
+         (keep #(some->> (.getName ^File %) (re-matches pattern) second Long/parseLong))
+         sort)))
+
+(defn- legacy? [^File base]
+  (or (.exists base) (.exists ^File (replacement base))))
+
+(defn- replay-events [handler state r]
+  (loop [state state]
+    (if-let [event (read-ignoring-exception r)]
+      (recur (handler state event))
+      state)))
+
+;   Journal records: length (int), CRC32 of the event (int), event (serialized).
+;   Journals start with record-magic. Older journals are a stream of transit JSON events.
+;
+(def ^:private record-magic (int 0x534E4A31)) ; "SNJ1"
+
+(defn- write-record! [^DataOutputStream out event]
+  (let [^bytes bytes (serialize event)
+        crc (CRC32.)]
+    (.update crc bytes)
+    (.writeInt out (alength bytes))
+    (.writeInt out (unchecked-int (.getValue crc)))
+    (.write out bytes)))
+
+(defn- valid-record-length
+  "Returns the length of the event in the record at the buffer's position, or
+   nil if the record is incomplete or its checksum does not match."
+  [^ByteBuffer buffer]
+  (when (>= (.remaining buffer) 8)
+    (let [position (.position buffer)
+          length (.getInt buffer position)
+          crc (.getInt buffer (+ position 4))]
+      (when (<= 0 length (- (.remaining buffer) 8))
+        (let [event (doto (.duplicate buffer)
+                      (.position (int (+ position 8)))
+                      (.limit (int (+ position 8 length))))
+              actual (doto (CRC32.) (.update event))]
+          (when (= crc (unchecked-int (.getValue actual)))
+            length))))))
+
+(defn- truncate! [^File file position]
+  (println "Truncating" (str file) "after its last valid record, at" position "bytes")
+  (with-open [channel (FileChannel/open (.toPath file) (into-array OpenOption [StandardOpenOption/WRITE]))]
+    (.truncate channel (long position))))
+
+(defn- replay-records
+  "Replays the records of a journal, reading it through a memory mapped
+   buffer, up to the last valid one. What follows it, a record cut short by a
+   crash for example, is truncated if truncate? is true."
+  [handler state ^File file truncate?]
+  (let [[state end size]
+        (with-open [channel (FileChannel/open (.toPath file) (into-array OpenOption [StandardOpenOption/READ]))]
+          (let [size (.size channel)
+                buffer (.map channel FileChannel$MapMode/READ_ONLY 0 size)]
+            (.position buffer 4)
+            (loop [state state
+                   bytes (byte-array 0)]
+              (if-some [length (valid-record-length buffer)]
+                (let [^bytes bytes (if (< (alength bytes) length) (byte-array length) bytes)]
+                  (.position buffer (int (+ (.position buffer) 8)))
+                  (.get buffer bytes 0 (int length))
+                  (recur (handler state (deserialize bytes length)) bytes))
+                [state (.position buffer) size]))))]
+    (when (and truncate? (< end size))
+      (truncate! file end))
+    state))
+
+(defn- records? [^File file]
+  (with-open [in (java.io.DataInputStream. (FileInputStream. file))]
+    (and (>= (.length file) 4)
+         (= record-magic (.readInt in)))))
+
+(defn- replay [handler state ^File file truncate?]
+  (if (records? file)
+    (replay-records handler state file truncate?)
+    (with-open [in (BufferedInputStream. (FileInputStream. file) buffer-size)]
+      (replay-events handler state (reader in)))))
+
+(defn- read-legacy [handler initial-state ^File base]
+  (atomic-recover! base)
+  (with-open [in (BufferedInputStream. (FileInputStream. base) buffer-size)]
+    (let [r (reader in)]
+      (replay-events handler (or (read-ignoring-exception r) initial-state) r))))
+
+; Snapshots: snapshot-magic followed by a single record with the state.
+;
+(def ^:private snapshot-magic (int 0x534E5331)) ; "SNS1"
+
+(defn- fsync-dir!
+  "Makes the renames and deletes done in file's directory durable, where the
+   platform allows directories to be opened."
+  [^File file]
+  (try
+    (with-open [channel (FileChannel/open (.toPath (.getParentFile (.getAbsoluteFile file))) (into-array OpenOption [StandardOpenOption/READ]))]
+      (.force channel true))
+    (catch java.io.IOException _ :unsupported)))
+
+(defn- atomic-replace!
+  "Writes content to a replacement file and forces it to disk before renaming
+   it to file, so that file is never found torn or empty after a crash."
+  [file content]
+  (let [^File rep (replacement file)]
+    (with-open [out (FileOutputStream. rep)]
+      (let [data (DataOutputStream. (BufferedOutputStream. out buffer-size))]
+        (.writeInt data snapshot-magic)
+        (write-record! data content)
+        (.flush data))
+      (.force (.getChannel out) true))
+    (when (.exists ^File file)
+      (archive file))
+    (assert (.renameTo rep file))
+    (fsync-dir! file)))
+
+(defn- read-snapshot
+  "Returns [state], or nil if the snapshot is incomplete or its checksum does
+   not match."
+  [^File file]
+  (with-open [channel (FileChannel/open (.toPath file) (into-array OpenOption [StandardOpenOption/READ]))]
+    (let [buffer (.map channel FileChannel$MapMode/READ_ONLY 0 (.size channel))]
+      (if (and (>= (.remaining buffer) 4) (= snapshot-magic (.getInt buffer)))
+        (if-some [length (valid-record-length buffer)]
+          (let [bytes (byte-array length)]
+            (.position buffer (int (+ (.position buffer) 8)))
+            (.get buffer bytes)
+            [(deserialize bytes)])
+          (println "Ignoring damaged snapshot:" (str file)))
+        (try
+          (with-open [in (BufferedInputStream. (FileInputStream. file) buffer-size)] ; Written before snapshots had a checksum.
+            [(read (reader in))])
+          (catch Exception e
+            (println "Ignoring unreadable snapshot:" (str file) e)))))))
+
+(defn- last-valid-snapshot
+  "Returns [seq state] for the most recent snapshot that is intact, or nil."
+  [base]
+  (some #(when-some [[state] (read-snapshot (segment-file base % :snapshot))]
+           [% state])
+        (reverse (segment-seqs base :snapshot))))
+
+(defn- recover-with-seq
+  "Returns [state next-seq]."
+  [handler initial-state base truncate?]
+  (let [[snapshot snapshot-state] (last-valid-snapshot base)
+        journals (segment-seqs base :journal)
+        state (cond
+                snapshot      snapshot-state
+                (legacy? base) (read-legacy handler initial-state base)
+                :else         initial-state)
+        state (reduce #(replay handler %1 (segment-file base %2 :journal) truncate?)
+                      state
+                      (filter #(>= % (or snapshot 0)) journals))]
+    [state (inc (reduce max -1 (concat journals (segment-seqs base :snapshot))))]))
+
+(defn recover
+  "Returns the state saved in base and its segments, without changing them."
+  [handler initial-state base]
+  (first (recover-with-seq handler initial-state base false)))
+
+(defn- write-snapshot!
+  "Saves state as snapshot seq, then deletes the snapshots and journals it
+   makes obsolete. They are deleted only once the snapshot is on disk."
+  [base seq state]
+  (atomic-replace! (segment-file base seq :snapshot) state)
+  (doseq [kind [:snapshot :journal]
+          old (segment-seqs base kind)
+          :when (< old seq)]
+    (.delete ^File (segment-file base old kind)))
+  (when (legacy? base)
+    (archive base))
+  (fsync-dir! base))
+
+(defn retire! [^File base]
+  "Archives base and its segments, which are no longer used."
+  (doseq [kind [:snapshot :journal]
+          seq (segment-seqs base kind)]
+    (archive (segment-file base seq kind)))
+  (when (.exists base)
+    (archive base)))
+
+(defn exists? [^File base]
+  "Returns whether anything was ever saved in base."
+  (boolean (or (legacy? base)
+               (seq (segment-seqs base :snapshot))
+               (seq (segment-seqs base :journal)))))
+
+(defn- open-journal [base seq]
+  (let [out (FileOutputStream. ^File (segment-file base seq :journal))
+        buffered (BufferedOutputStream. out buffer-size)
+        data (DataOutputStream. buffered)]
+    (.writeInt data record-magic)
+    {:seq seq
+     :out out
+     :buffered buffered
+     :data data
+     :events 0}))
+
+(defn- sync! [{:keys [^FileOutputStream out ^BufferedOutputStream buffered]} fsync?]
+  (.flush buffered)
+  (when fsync?
+    (.force (.getChannel out) false)))
+
+(defn- close-journal [{:keys [^FileOutputStream out] :as journal}]
+  (sync! journal true)
+  (.close out))
+
+(defn- journal-bytes [{:keys [^FileOutputStream out]}]
+  (.position (.getChannel out)))
+
+(defn- start-group-sync [lock journal open? sync-millis]
+  (doto (Thread. #(while @open?
+                    (Thread/sleep sync-millis)
+                    (locking lock
+                      (when @open?
+                        (sync! @journal true))))
+                 "prevalence-group-sync")
+    (.setDaemon true)
+    (.start)))
+
+(defn- snapshot-executor
+  "Writes snapshots one at a time, on a daemon thread."
+  ^ExecutorService []
+  (Executors/newSingleThreadExecutor
+    (reify ThreadFactory
+      (newThread [_ runnable]
+        (doto (Thread. runnable "prevalence-snapshot")
+          (.setDaemon true))))))
+
+(defn- snapshot-in-background!
+  "State is an immutable value, so it is written while events keep being
+   journaled. Until the snapshot is complete, recovery uses the previous one
+   and replays the journals since."
+  [^ExecutorService executor base seq state]
+  (.execute executor
+            #(try
+               (write-snapshot! base seq state)
+               (catch Throwable t
+                 (println "Error writing snapshot" seq "of" (str base))
+                 (.printStackTrace t)))))
+
 (defn prevayler-jr!
   ([handler initial-state]
     (let [state (atom initial-state)]
@@ -51,29 +308,46 @@
             @state))))
 
   ([handler initial-state file]
-    (let [state (atom initial-state)
-          -handle! (partial swap! state handler)]
-      (atomic-recover! file)
-      (with-open [in (FileInputStream. file)]
-        (let [r (reader in)]
-          (when-let [previous (read-ignoring-exception r)]
-            (reset! state previous))
-          (while-let [event (read-ignoring-exception r)]
-            (-handle! event))))
-
-      (atomic-replace! file @state)
-
-      (let [append true
-            out (FileOutputStream. file append)
-            w (writer out)]
+    (prevayler-jr! handler initial-state file nil))
+
+  ([handler initial-state file options]
+    (let [{:keys [sync sync-millis snapshot-events snapshot-bytes]} (merge default-options options)
+          [recovered seq] (recover-with-seq handler initial-state file true)
+          state (atom recovered)
+          lock (Object.)
+          open? (atom true)
+          snapshots (snapshot-executor)]
+      (let [journal (atom (open-journal file seq))
+            rotate! (fn []
+                      (let [seq (inc (:seq @journal))]
+                        (close-journal @journal)
+                        (reset! journal (open-journal file seq))
+                        (snapshot-in-background! snapshots file seq @state)))]
+        (snapshot-in-background! snapshots file seq recovered)
+        (when (= sync :group)
+          (start-group-sync lock journal open? sync-millis))
         (reify
           Prevayler
             (handle! [_ event]
-              (write w event)
-              (-handle! event))
+              (locking lock
+                (let [j (swap! journal update :events inc)]
+                  (write-record! (:data j) event)
+                  (case sync
+                    :flush (sync! j false)
+                    :fsync (sync! j true)
+                    :group nil)
+                  (let [result (swap! state handler event)]
+                    (when (or (>= (:events j) snapshot-events)
+                              (>= (journal-bytes j) snapshot-bytes))
+                      (rotate!))
+                    result))))
             (close! [_]
-              (reset! state ::closed)
-              (.close out))
+              (locking lock
+                (reset! open? false)
+                (reset! state ::closed)
+                (close-journal @journal))
+              (.shutdown snapshots)
+              (.awaitTermination snapshots 1 TimeUnit/MINUTES))
           clojure.lang.IDeref
             (deref [_]
               @state))))))
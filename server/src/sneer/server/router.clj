@@ -1,26 +1,17 @@
 (ns sneer.server.router
   (:require
-    [sneer.commons :refer [empty-queue]]
-    [clojure.set :refer [difference]]))
+    [sneer.commons :refer [empty-queue]]))
 
-(defn- dropping-conj [xs x max-size]
-  (let [full? (>= (count xs) max-size)]
-    (if full? xs (conj xs x))))
-
-(defn- dropping-enqueue [q element max-size]
-  (dropping-conj (or q empty-queue) element max-size))
-
-(defn- next-wrap [coll element]
-  (let [count (count coll)]
-    (if (zero? count)
-      nil
-      (let [^java.util.List vec (vec coll)
-            index (.indexOf vec element)]
-        (get vec (mod (inc index) count))))))
+(defn- turn
+  "The sender whose tuple is next. Senders take turns in the order of the
+   :ring queue. Older states, saved before there was a ring, have a :turn."
+  [receiver-q]
+  (if-some [ring (:ring receiver-q)]
+    (peek ring)
+    (:turn receiver-q)))
 
 (defn- peek-tuple-for [receiver-q]
-  (let [{:keys [qs-by-sender turn]} receiver-q
-        tuple (some-> turn qs-by-sender peek)]
+  (let [tuple (some-> receiver-q turn ((:qs-by-sender receiver-q)) peek)]
     (when tuple {:send tuple})))
 
 (defn- peek-cts-for [receiver-q]
@@ -32,8 +23,28 @@
     (peek-cts-for receiver-q)
     (peek-tuple-for receiver-q)))
 
+(defn- count-hash [counts h delta]
+  (let [n (+ (get counts h 0) delta)]
+    (if (pos? n)
+      (assoc counts h n)
+      (dissoc counts h))))
+
+(defn- with-ring
+  "Upgrades receiver-q saved before senders had a :ring and their tuples' hashes
+   were kept for duplicate checks."
+  [receiver-q]
+  (if (or (nil? receiver-q) (:ring receiver-q))
+    receiver-q
+    (let [{:keys [qs-by-sender turn]} receiver-q
+          [before after] (split-with #(not= turn %) (keys qs-by-sender))]
+      (-> receiver-q
+          (dissoc :turn)
+          (assoc :ring (into empty-queue (concat after before)))
+          (assoc :hashes-by-sender (into {} (for [[sender q] qs-by-sender]
+                                              [sender (reduce #(count-hash %1 (hash %2) 1) {} q)])))))))
+
 (defn- mark-full [receiver-q sender]
-  (update-in receiver-q [:senders-to-notify-when-cts] (fnil conj #{}) sender))
+  (update receiver-q :senders-to-notify-when-cts (fnil conj #{}) sender))
 
 (defn- sender-queue-count [receiver-q sender]
   (-> receiver-q (get-in [:qs-by-sender sender]) count))
@@ -43,29 +54,41 @@
   (>= (sender-queue-count receiver-q sender) max-queue-size))
 
 (defn- enqueue-for [receiver-q queue-size sender tuple]
-  (let [turn (:turn receiver-q)
-        receiver-q (update-in receiver-q [:qs-by-sender sender] dropping-enqueue tuple queue-size)
-        receiver-q (if turn
-                     receiver-q
-                     (assoc receiver-q :turn sender))]
-
-    (if (sender-queue-full? receiver-q sender queue-size)
-      (mark-full receiver-q sender)
-      receiver-q)))
-
-(defn- pop-tuple-packet [receiver-q]
-    (let [turn (:turn receiver-q)
-        receiver-q (update-in receiver-q [:qs-by-sender turn] pop)
-        sender-q-empty? (nil? (peek-tuple-for receiver-q))
-        senders (-> receiver-q :qs-by-sender keys)
-        receiver-q (assoc receiver-q :turn (next-wrap senders turn))
-        sender-to-notify (get-in receiver-q [:senders-to-notify-when-cts turn])
-        receiver-q (if sender-q-empty?
-                     (-> receiver-q
-                       (update-in [:qs-by-sender] dissoc turn)
-                       (update-in [:senders-to-notify-when-cts] disj turn)) ; If there was only one sender, :turn will point to it (removed sender) but that's ok because receiver-q will be empty and will be removed from qs.
-                     receiver-q)]
-      [receiver-q (when sender-q-empty? sender-to-notify)]))
+  (let [receiver-q (with-ring receiver-q)
+        q (get-in receiver-q [:qs-by-sender sender])]
+    (if (>= (count q) queue-size)
+      receiver-q
+      (let [receiver-q (-> receiver-q
+                           (assoc-in [:qs-by-sender sender] (conj (or q empty-queue) tuple))
+                           (update-in [:hashes-by-sender sender] (fnil count-hash {}) (hash tuple) 1)
+                           (cond-> (nil? q) (update :ring (fnil conj empty-queue) sender)))]
+        (if (sender-queue-full? receiver-q sender queue-size)
+          (mark-full receiver-q sender)
+          receiver-q)))))
+
+(defn- pop-tuple-packet
+  "Pops the tuple of the sender whose turn it is, which goes to the back of
+   the ring unless it has no tuples left."
+  [receiver-q]
+  (let [receiver-q (with-ring receiver-q)
+        sender (turn receiver-q)]
+    (if-some [q (get-in receiver-q [:qs-by-sender sender])]
+      (let [tuple (peek q)
+            q (pop q)
+            ring (pop (:ring receiver-q))
+            receiver-q (update-in receiver-q [:hashes-by-sender sender] count-hash (hash tuple) -1)]
+        (if (empty? q)
+          [(-> receiver-q
+               (assoc :ring ring)
+               (update :qs-by-sender dissoc sender)
+               (update :hashes-by-sender dissoc sender)
+               (update :senders-to-notify-when-cts disj sender))
+           (get-in receiver-q [:senders-to-notify-when-cts sender])]
+          [(-> receiver-q
+               (assoc :ring (conj ring sender))
+               (assoc-in [:qs-by-sender sender] q))
+           nil]))
+      [receiver-q nil])))
 
 (defn- pop-cts-packet [receiver-q]
   [(update-in receiver-q [:receivers-cts] pop) nil])
@@ -75,9 +98,25 @@
     (pop-cts-packet receiver-q)
     (pop-tuple-packet receiver-q)))
 
-(defn- enqueue-cts [router sender receiver]
+(defn enqueue-cts [router sender receiver]
+  "Adds a :cts from receiver to the packets to be sent to sender."
   (update-in router [sender :receivers-cts] (fnil conj empty-queue) receiver))
 
+(defn cts-for [router sender]
+  "Returns the receivers whose :cts are waiting to be sent to sender."
+  (get-in router [sender :receivers-cts]))
+
+(defn forget-cts [router sender & [n]]
+  "Removes the :cts waiting to be sent to sender, or only the first n of them."
+  (let [receiver-q (router sender)
+        remaining (when n (seq (drop n (:receivers-cts receiver-q))))
+        receiver-q (if remaining
+                     (assoc receiver-q :receivers-cts (into empty-queue remaining))
+                     (dissoc receiver-q :receivers-cts))]
+    (if (peek-for receiver-q)
+      (assoc  router sender receiver-q)
+      (dissoc router sender))))
+
 (defn enqueue [router sender receiver tuple]
   "Adds tuple to its receiver/sender send queue. Pre-requisite: the queue is not full."
   (update-in router [receiver] enqueue-for (router :max-queue-size) sender tuple))
@@ -97,9 +136,23 @@
       (dissoc router receiver)
       (assoc  router receiver receiver-q))))
 
+(defn rotate-turn [router receiver]
+  "Passes the turn to the next sender with tuples for receiver, leaving the
+   tuple of the sender whose turn it was at the head of its own queue."
+  (if-some [receiver-q (with-ring (router receiver))]
+    (let [ring (:ring receiver-q)]
+      (assoc router receiver (if (next ring)
+                               (assoc receiver-q :ring (conj (pop ring) (peek ring)))
+                               receiver-q)))
+    router))
+
 (defn duplicated-tuple? [router sender receiver tuple]
-  (let [queue (get-in router [receiver :qs-by-sender sender])]
-    (some #(= % tuple) queue)))
+  "Returns whether tuple is in the receiver/sender send queue. The queue is
+   only scanned when it holds a tuple with the same hash."
+  (let [receiver-q (router receiver)
+        hashes (get-in receiver-q [:hashes-by-sender sender])]
+    (when (or (nil? hashes) (contains? hashes (hash tuple)))
+      (some #(= % tuple) (get-in receiver-q [:qs-by-sender sender])))))
 
 (defn queue-full? [router sender receiver]
   "Returns whether the receiver/sender send queue is full."
@@ -108,9 +161,28 @@
 
 ; { :max-queue-size x
 ;   receiver        { :qs-by-sender                { sender q }
-;                     :turn                        sender
+;                     :ring                        q of senders, the one whose turn it is first
+;                     :hashes-by-sender            { sender { tuple-hash count } }
 ;                     :senders-to-notify-when-cts  #{sender}
 ;                     :receivers-cts               q } }
 ;
 (defn create-router [max-queue-size]
   { :max-queue-size max-queue-size })
+
+(defn split-router [router shard-count shard-of]
+  "Splits router into shard-count routers, each with the receivers for which shard-of returns its index."
+  (reduce-kv (fn [shards receiver receiver-q]
+               (if (= receiver :max-queue-size)
+                 shards
+                 (assoc-in shards [(shard-of receiver) receiver] receiver-q)))
+             (vec (repeat shard-count (create-router (router :max-queue-size))))
+             router))
+
+(defn- merge-receiver-qs [receiver-q1 receiver-q2]
+  (let [cts (into (or (:receivers-cts receiver-q1) empty-queue) (:receivers-cts receiver-q2))]
+    (cond-> (merge receiver-q1 receiver-q2)
+      (seq cts) (assoc :receivers-cts cts))))
+
+(defn merge-routers [routers]
+  "The inverse of split-router. The :cts waiting for a sender in more than one router are all kept."
+  (apply merge-with #(if (map? %1) (merge-receiver-qs %1 %2) %2) routers))
@@ -4,12 +4,16 @@
     [clojure.core.async.impl.protocols :as impl]
     [clojure.core.match :refer [match]]
     [sneer.async :refer :all]
-    [sneer.commons :refer [empty-queue loop-state]]
+    [sneer.commons :refer [empty-queue loop-state while-let]]
     [sneer.server.prevalence :as p]
-    [sneer.server.router :refer :all]))
+    [sneer.server.router :refer :all])
+  (:import [java.io File]))
 
 (def resend-timeout-millis 500)
 (def online-count 20)
+(def ^:private idle-expiry-ticks 120) ; Resend timeouts (one minute) without hearing from an idle client. Clients ping every 20 seconds.
+(def ^:private recently-accepted-count 32) ; More than the clients' send window.
+(def ^:private sends-before-rotation 2) ; A tuple sent this many times without an ack gives its turn to another sender.
 
 (defrecord NamedChannel [name channel]
   impl/ReadPort
@@ -51,18 +55,87 @@
 (defn- online? [state client]
   (get-in state [:online-clients client]))
 
-(defn- update-pending-to-send [state client]
+(defn- update-pending-to-send
+  "Also keeps the set of clients that are :ready, with packets pending, so
+   that send rounds do not have to look through all online clients."
+  [state client]
   (if (online? state client)
-    (assoc-in state [:online-clients client :pending-to-send]
-      (peek-packet-for @(:router state) client))
+    (let [pending (peek-packet-for @(:router state) client)]
+      (-> state
+          (cond-> (not= pending (get-in state [:online-clients client :pending-to-send]))
+            (assoc-in [:online-clients client :sends] 0))
+          (assoc-in [:online-clients client :pending-to-send] pending)
+          (update :ready (if pending conj disj) client)))
     state))
 
+(defn- rotate-if-refused
+  "Clients do not ack a tuple they have no room for yet, such as a fragment
+   of a new large tuple while others are being reassembled. Another sender's
+   tuple goes first then, so that it does not hold up the ones in progress."
+  [state client]
+  (let [{:keys [pending-to-send sends]} (get-in state [:online-clients client])]
+    (if (and (:send pending-to-send) (>= (or sends 0) sends-before-rotation))
+      (do
+        (p/handle! (:router state) [:rotate-turn client])
+        (update-pending-to-send state client))
+      state)))
+
+(defn- go-offline
+  "Forgets what was recently accepted from client too: when it comes back,
+   its tuples are taken as they come, as after a restart (see in-order?)."
+  [state client]
+  (-> state
+      (update :online-clients dissoc client)
+      (update :ready disj client)
+      (update :recently-accepted dissoc client)))
+
+(defn- seen
+  "Schedules client to expire, in the timer wheel, idle-expiry-ticks from now.
+   Entries left in the wheel by earlier schedules are ignored when their
+   tick comes."
+  [{:keys [tick] :as state} client]
+  (let [expiry (+ tick idle-expiry-ticks)]
+    (if (= expiry (get-in state [:online-clients client :expiry]))
+      state
+      (-> state
+          (assoc-in [:online-clients client :expiry] expiry)
+          (update-in [:wheel expiry] (fnil conj []) client)))))
+
+(defn- expire-idle
+  "Advances the timer wheel one tick, taking offline the clients scheduled
+   to expire that have not been heard from since and have nothing to be sent.
+   Clients with packets pending go offline when they stop acking them (see
+   online-count)."
+  [{:keys [tick wheel] :as state}]
+  (let [tick (inc tick)
+        expired (filter #(let [{:keys [expiry pending-to-send]} (get-in state [:online-clients %])]
+                           (and (= expiry tick) (nil? pending-to-send)))
+                        (get wheel tick))]
+    (reduce go-offline
+            (assoc state :tick tick :wheel (dissoc wheel tick))
+            expired)))
+
+(defn- hand-over-cts
+  "A :cts for a sender owned by another shard is queued to be handed over to
+   that shard, one hand-over per sender at a time. The shard puts it into the
+   other shard's cts-in without ever blocking (see channel-ops), so two shards
+   handing over to each other cannot deadlock."
+  [{:keys [router owns? shard-of cts-ins handing-over] :as state} sender]
+  (if (or (owns? sender) (contains? handing-over sender))
+    state
+    (if-some [receivers (seq (cts-for @router sender))]
+      (-> state
+          (update :cts-out conj [(NamedChannel. :cts-out (cts-ins (shard-of sender))) [sender (vec receivers)]])
+          (update :handing-over conj sender))
+      state)))
+
 (defn- handle-ack [state from signature]
   (let [pending (get-in state [:online-clients from :pending-to-send])]
     (if (= signature (packet-signature pending))
       (let [peer (first signature)]
         (p/handle! (:router state) [:pop-packet-for from])
         (-> state
+            (hand-over-cts peer)
             (update-pending-to-send from)
             (update-pending-to-send peer)))
       state)))
@@ -76,57 +149,94 @@
       (println "Connector GCM-OUT:" to)
       (>!! (:gcm-out state) to))))
 
-(defn- handle-send [state from to tuple]
+(defn- recently-accepted [state from to]
+  (get-in state [:recently-accepted from to]))
+
+(defn- accepted-recently? [state from to tuple]
+  (let [signature (packet-signature {:send tuple})]
+    (some #(= % signature) (recently-accepted state from to))))
+
+(defn- in-order?
+  "Clients send several tuples before getting acks, each with the signature
+   of the one sent before it (prev). A tuple whose predecessor was lost is
+   dropped without reply, to be resent by the client after the predecessor.
+   Tuples without prev, or from clients not seen since this connector
+   started or since they last went offline, are taken as they come."
+  [state from to prev]
+  (let [recent (recently-accepted state from to)]
+    (or (nil? prev)
+        (empty? recent)
+        (= prev (peek recent)))))
+
+(defn- record-accepted [state from to tuple]
+  (update-in state [:recently-accepted from to]
+             #(let [recent (conj (or % []) (packet-signature {:send tuple}))]
+                (if (> (count recent) recently-accepted-count)
+                  (subvec recent 1)
+                  recent))))
+
+(defn- handle-send [state from to tuple prev]
   (let [router (:router state)
         packets-out (:packets-out state)
         last-tuple (get-in state [:last-tuple from])
         state (update-in state [:last-tuple from] tuple)]
-    (if (= tuple last-tuple)
+    (cond
+      (= tuple last-tuple)
       state
-      (if (duplicated-tuple? @router from to tuple)
-        (do
-          (reply packets-out :ack from to tuple)
-          state)
-        (if (queue-full? @router from to)
-          (do
-            (reply packets-out :nak from to tuple)
-            state)
-          (do
-            (send-gcm-if-necessary! state @router to)
-            (p/handle! router [:enqueue from to tuple])
-            (reply packets-out :ack from to tuple)
-            (-> state
-                (update-pending-to-send to))))))))
+
+      (or (accepted-recently? state from to tuple)
+          (duplicated-tuple? @router from to tuple))
+      (do
+        (reply packets-out :ack from to tuple)
+        state)
+
+      (not (in-order? state from to prev))
+      state
+
+      (queue-full? @router from to)
+      (do
+        (reply packets-out :nak from to tuple)
+        state)
+
+      :else
+      (do
+        (send-gcm-if-necessary! state @router to)
+        (p/handle! router [:enqueue from to tuple])
+        (reply packets-out :ack from to tuple)
+        (-> state
+            (record-accepted from to tuple)
+            (update-pending-to-send to))))))
 
 (defn- send-op [{:keys [packets-out online-clients send-round resend-timeout]}]
   (if-some [packet (next-packet-to-send online-clients send-round)]
     [packets-out packet]
     resend-timeout))
 
-(defn- channel-ops [{:keys [packets-in] :as state}]
-  [(send-op state)
-   packets-in])
+(defn- channel-ops [{:keys [packets-in cts-in cts-out] :as state}]
+  (cond-> [(send-op state)]
+    (seq cts-out) (conj (peek cts-out))
+    true (conj packets-in cts-in)))
 
 (defn- ->named [resend-timeout-fn]
   (NamedChannel. :resend-timeout (resend-timeout-fn)))
 
-(defn- send-round [online-clients]
-  (->>
-    online-clients
-    keys
-    (filter #(get-in online-clients [% :pending-to-send]))
-    (into empty-queue)))
+(defn- send-round [ready]
+  (into empty-queue ready))
 
 (defmulti handle (fn [_ _ channel] (:name channel)))
 
 (defmethod handle :packets-in [state packet _]
   (if packet
     (when-some [from (:from packet)]
-      (let [state (assoc-in state [:online-clients from :online-countdown] online-count)
-            state (update-pending-to-send state from)]
+      (let [state (if ((:owns? state) from)
+                    (-> state
+                        (assoc-in [:online-clients from :online-countdown] online-count)
+                        (seen from)
+                        (update-pending-to-send from))
+                    state)]
         (match packet
           {:send tuple :to to}
-          (handle-send state from to tuple)
+          (handle-send state from to tuple (:prev packet))
 
           {:ack author}
           (handle-ack state from [author (:id packet)])
@@ -139,16 +249,38 @@
   (let [client (-> state :send-round peek)
         state' (-> state
                  (update-in [:online-clients client :online-countdown] dec)
+                 (update-in [:online-clients client :sends] (fnil inc 0))
                  (update-in [:send-round] pop))]
     (if (zero? (get-in state' [:online-clients client :online-countdown]))
       (do
         (>!! (:gcm-out state') client)
-        (update-in state' [:online-clients] dissoc client))
+        (go-offline state' client))
       state')))
 
-(defmethod handle :resend-timeout [{:keys [online-clients resend-timeout-fn]} _ _]
-  {:send-round (send-round online-clients)
-   :resend-timeout (->named resend-timeout-fn)})
+(defmethod handle :cts-in [state [sender receivers] _]
+  (doseq [receiver receivers]
+    (p/handle! (:router state) [:enqueue-cts sender receiver]))
+  (update-pending-to-send state sender))
+
+;; The :cts handed over are forgotten here only after the other shard's cts-in
+;; took them, so that a crash in between causes at most a repeated :cts, which
+;; clients ignore. Those that arrived meanwhile are handed over next.
+(defmethod handle :cts-out [state accepted? _]
+  (let [[_ [sender receivers]] (peek (:cts-out state))
+        state (-> state
+                  (update :cts-out pop)
+                  (update :handing-over disj sender))]
+    (if accepted?
+      (do
+        (p/handle! (:router state) [:forget-cts sender (count receivers)])
+        (hand-over-cts state sender))
+      state)))
+
+(defmethod handle :resend-timeout [{:keys [ready resend-timeout-fn] :as state} _ _]
+  (-> (reduce rotate-if-refused state ready)
+      expire-idle
+      (assoc :send-round (send-round ready)
+             :resend-timeout (->named resend-timeout-fn))))
 
 (defn- -iterate [state]
   (let [chosen (alts!! (channel-ops state) :priority :true)]
@@ -160,33 +292,123 @@
   (pop-packet-for router from))
 (defmethod handle-event :enqueue [router [_ from to tuple]]
   (enqueue router from to tuple))
+(defmethod handle-event :enqueue-cts [router [_ sender receiver]]
+  (enqueue-cts router sender receiver))
+(defmethod handle-event :rotate-turn [router [_ receiver]]
+  (rotate-turn router receiver))
+(defmethod handle-event :forget-cts [router [_ sender n]]
+  (forget-cts router sender n))
+
+(defn- shard-fn [shard-count]
+  (fn [puk] (mod (hash puk) shard-count)))
+
+(defn- shard-for
+  "Packets sent to a client are handled by the receiver's shard. All other
+   packets (acks and pings) are handled by the shard of the client they come
+   from, which also gets a copy of the sends it makes to other shards to keep
+   track of its presence."
+  [shard-of {:keys [from to] :as packet}]
+  (if (:send packet)
+    (shard-of to)
+    (shard-of from)))
+
+(defn- dispatch! [shard-of shard-ins packet]
+  (when-some [from (:from packet)]
+    (let [shard (shard-for shard-of packet)]
+      (>!! (shard-ins shard) packet)
+      (when (not= shard (shard-of from))
+        (>!! (shard-ins (shard-of from)) {:from from})))))
 
-(defn- start [prevalent-router packets-in packets-out resend-timeout-fn gcm-out]
+(defn- start-shard [shard-of shard cts-ins prevalent-router packets-in packets-out resend-timeout-fn gcm-out]
   (thread
-    (loop-state -iterate
-                {:packets-in        (NamedChannel. :packets-in packets-in)
+    (let [state {:packets-in        (NamedChannel. :packets-in packets-in)
                  :packets-out       (NamedChannel. :packets-out packets-out)
+                 :cts-in            (NamedChannel. :cts-in (cts-ins shard))
+                 :cts-ins           cts-ins
+                 :cts-out           empty-queue
+                 :handing-over      #{}
+                 :owns?             #(= shard (shard-of %))
+                 :shard-of          shard-of
                  :router            prevalent-router
                  :online-clients    {}
+                 :ready             #{}
+                 :tick              0
+                 :wheel             {}
                  :send-round        empty-queue
                  :resend-timeout-fn resend-timeout-fn
                  :resend-timeout    (->named resend-timeout-fn)
-                 :gcm-out           gcm-out})
-    (close! packets-out)
-    (close! gcm-out)))
-
-(defn start-connector [prevalence-file packets-in packets-out gcm-out]
-  (start (p/prevayler-jr! handle-event
-                          (create-router 200)
-                          prevalence-file)
-         packets-in
-         packets-out
-         #(async/timeout resend-timeout-millis)
-         gcm-out))
-
-(defn start-transient-connector [queue-size packets-in packets-out resend-timeout-fn & [gcm-out]]
+                 :gcm-out           gcm-out}]
+      (loop-state -iterate (reduce hand-over-cts state (keys @prevalent-router)))))) ; Hand-overs interrupted by a crash.
+
+(defn- start
+  "Starts one shard per prevalent router, each handling the clients whose
+   puks hash to its index. Shards run in parallel, on their own threads."
+  [prevalent-routers packets-in packets-out resend-timeout-fn gcm-out]
+  (let [shard-count (count prevalent-routers)
+        shard-of (shard-fn shard-count)
+        single? (= shard-count 1)
+        shard-ins (if single? [packets-in] (vec (repeatedly shard-count chan)))
+        cts-ins (vec (repeatedly shard-count #(chan 1024)))
+        shards (doall (map-indexed #(start-shard shard-of %1 cts-ins %2 (shard-ins %1) packets-out resend-timeout-fn gcm-out)
+                                   prevalent-routers))]
+    (thread
+      (when-not single?
+        (while-let [packet (<!! packets-in)]
+          (dispatch! shard-of shard-ins packet))
+        (doseq [shard-in shard-ins]
+          (close! shard-in)))
+      (doseq [shard shards]
+        (<!! shard))
+      (close! packets-out)
+      (close! gcm-out))))
+
+(defn- shard-file [^File prevalence-file shard shard-count]
+  (File. (str prevalence-file "." shard "-of-" shard-count)))
+
+(defn- stale-journals
+  "The journals left by a run with a different number of shards, or by the
+   unsharded connector (prevalence-file itself)."
+  [^File prevalence-file shard-count]
+  (let [dir (.getParentFile (.getAbsoluteFile prevalence-file))
+        pattern (re-pattern (str "(\\Q" (.getName prevalence-file) "\\E\\.\\d+-of-(\\d+))(\\..*)?"))
+        sharded (distinct
+                  (for [^File file (.listFiles dir)
+                        :let [[_ base n] (re-matches pattern (.getName file))]
+                        :when (and n (not= (Integer/parseInt n) shard-count))]
+                    (File. dir ^String base)))]
+    (cond->> sharded
+      (p/exists? prevalence-file) (cons prevalence-file))))
+
+(defn- reshard!
+  "Splits the state of stale journals into new journals for shard-count
+   shards, then retires the stale ones. If interrupted, it is redone from
+   the stale journals on the next start."
+  [prevalence-file shard-count initial-router]
+  (when-some [stale (seq (stale-journals prevalence-file shard-count))]
+    (println "Resharding" (map str stale) "into" shard-count "shards")
+    (let [router (merge-routers (cons initial-router (map #(p/recover handle-event initial-router %) stale)))
+          routers (split-router router shard-count (shard-fn shard-count))]
+      (doseq [shard (range shard-count)]
+        (let [file (shard-file prevalence-file shard shard-count)]
+          (p/retire! file)                                  ; Left by an interrupted resharding.
+          (p/close! (p/prevayler-jr! handle-event (routers shard) file))))
+      (doseq [file stale]
+        (p/retire! file)))))
+
+(defn start-connector [prevalence-file packets-in packets-out gcm-out & [shard-count]]
+  (let [shard-count (or shard-count (.availableProcessors (Runtime/getRuntime)))
+        initial-router (create-router 200)]
+    (reshard! prevalence-file shard-count initial-router)
+    (start (mapv #(p/prevayler-jr! handle-event initial-router (shard-file prevalence-file % shard-count))
+                 (range shard-count))
+           packets-in
+           packets-out
+           #(async/timeout resend-timeout-millis)
+           gcm-out)))
+
+(defn start-transient-connector [queue-size packets-in packets-out resend-timeout-fn & [gcm-out shard-count]]
   (let [gcm-out (or gcm-out (dropping-chan))]
-    (start (p/prevayler-jr! handle-event (create-router queue-size))
+    (start (vec (repeatedly (or shard-count 1) #(p/prevayler-jr! handle-event (create-router queue-size))))
            packets-in
            packets-out
            resend-timeout-fn
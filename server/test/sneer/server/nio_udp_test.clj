@@ -0,0 +1,41 @@
+(ns sneer.server.nio-udp-test
+  (:require [midje.sweet :refer [fact]]
+            [sneer.server.nio-udp :refer [start-udp-server]]
+            [sneer.networking.udp :as udp]
+            [sneer.test-util :refer :all]
+            [clojure.core.async :refer [chan close!]])
+  (:import [java.net InetSocketAddress]))
+
+; (do (require 'midje.repl) (midje.repl/autotest))
+
+(let [echo-port 1025
+      loopback (chan)
+      packets-out (chan)
+      packets-in (chan)
+      server (InetSocketAddress. "localhost" echo-port)
+      echo (fn [string]
+             (assert
+               (>!!? packets-out [server (.getBytes ^String string)]))
+             (let [p (<!!? packets-in)]
+               (if (= p :timeout) :timeout (-> p second String.))))]
+
+  (start-udp-server loopback loopback echo-port)
+  (udp/start-udp-server packets-in packets-out)
+
+  (fact "Packets are echoed"
+    (echo "Chance for loopback server to start.")
+    (echo "Hello") => "Hello"
+    (echo "42") => "42")
+
+  (fact "Batches are received and echoed in order"
+    (doseq [string ["one" "two" "three"]]
+      (>!!? packets-out [server (.getBytes ^String string)]))
+    (->> (repeatedly 3 #(<!!? packets-in))
+         (map (comp #(String. ^bytes %) second))) => ["one" "two" "three"])
+
+  (fact "Packets that cannot be sent to their destination are dropped"
+    (>!!? loopback [(InetSocketAddress. "255.255.255.255" 1234) "No broadcasts"]) ; Fails with an IOException.
+    (echo "Still echoing") => "Still echoing")
+
+  (close! loopback)
+  (close! packets-out))
@@ -15,7 +15,7 @@
         initial-state 0
         file (tmp-file)
         
-        prevayler! #(prevayler-jr! handler initial-state file)]
+        prevayler! (fn [& [options]] (prevayler-jr! handler initial-state file options))]
     
     (let [p1 (prevayler!)]
       @p1 => 0
@@ -39,8 +39,98 @@
       @p3 => 11142
       (close! p3))
     
-    ; Simulate crash during log rolling.
-    (assert (.renameTo file (replacement file)))
-    (let [p4 (prevayler!)]
-      @p4 => 11142
-      (close! p4))))
+    ; Simulate crash before the old journal is deleted.
+    (let [p4 (prevayler! {:snapshot-events 1})]
+      (handle! p4 100000)
+      (close! p4))
+    (let [p5 (prevayler!)]
+      @p5 => 111142
+      (close! p5))))
+
+(defn- files-of [^java.io.File base]
+  (->> (.listFiles (.getParentFile base))
+       (map #(.getName ^java.io.File %))
+       (filter #(.startsWith ^String % (str (.getName base) ".")))
+       sort))
+
+(fact "Journals are rotated after a snapshot"
+  (let [file (tmp-file)
+        p1 (prevayler-jr! + 0 file {:snapshot-events 2})]
+    (dotimes [_ 5] (handle! p1 1))
+    (close! p1)
+    (files-of file) => [(str (.getName file) ".2.journal") (str (.getName file) ".2.snapshot")]
+    (let [p2 (prevayler-jr! + 0 file {:sync :group :sync-millis 10})]
+      @p2 => 5
+      (handle! p2 10)
+      (Thread/sleep 50)
+      (recover + 0 file) => 15
+      (close! p2))))
+
+(fact "Journals from before segments are recovered and archived"
+  (let [file (tmp-file)]
+    (with-open [out (java.io.FileOutputStream. file)]
+      (let [w (sneer.serialization/writer out)]
+        (sneer.serialization/write w 40)
+        (sneer.serialization/write w 2)))
+    (assert (.renameTo file (replacement file)))            ; Simulate crash during log rolling.
+    (let [p (prevayler-jr! + 0 file)]
+      @p => 42
+      (close! p))
+    (.exists file) => false                                 ; Archived once the snapshot is written.
+    (recover + 0 file) => 42))
+
+(defn- journal-of [^java.io.File base]
+  (->> (files-of base) (filter #(.endsWith ^String % ".journal")) last (java.io.File. (.getParentFile base))))
+
+(fact "Journals are truncated after their last valid record"
+  (let [file (tmp-file)
+        p1 (prevayler-jr! + 0 file)]
+    (handle! p1 1)
+    (handle! p1 2)
+    (close! p1)
+    (let [journal (journal-of file)
+          valid-length (.length journal)]
+      (with-open [out (java.io.DataOutputStream. (java.io.FileOutputStream. journal true))]
+        (.writeInt out 100)                                 ; Record cut short by a crash.
+        (.writeInt out 42))
+      (recover + 0 file) => 3
+      (.length journal) => (+ valid-length 8)
+      (#'sneer.server.prevalence/replay + 0 journal true) => 3
+      (.length journal) => valid-length)))
+
+(fact "Records with a wrong checksum end the journal"
+  (let [file (tmp-file)
+        p1 (prevayler-jr! + 0 file)]
+    (handle! p1 1)
+    (handle! p1 2)
+    (close! p1)
+    (let [journal (journal-of file)]
+      (with-open [raf (java.io.RandomAccessFile. journal "rw")]
+        (let [last-byte (dec (.length raf))]
+          (.seek raf last-byte)
+          (let [b (.read raf)]
+            (.seek raf last-byte)
+            (.write raf (bit-xor b 0xFF)))))
+      (recover + 0 file) => 1)))
+
+(fact "Journals of transit events, from before records, are replayed"
+  (let [file (tmp-file)]
+    (with-open [out (java.io.FileOutputStream. (java.io.File. (str file ".0.journal")))]
+      (let [w (sneer.serialization/writer out)]
+        (sneer.serialization/write w 40)
+        (sneer.serialization/write w 2)))
+    (recover + 0 file) => 42))
+
+(fact "Damaged snapshots are ignored in favor of the last intact one"
+  (let [file (tmp-file)
+        p1 (prevayler-jr! + 0 file)]
+    (handle! p1 40)
+    (handle! p1 2)
+    (close! p1)
+    (with-open [out (java.io.FileOutputStream. (java.io.File. (str file ".1.snapshot")))]
+      (.write out (byte-array [0x53 0x4E])))                ; Torn by a crash.
+    (recover + 0 file) => 42
+    (let [p2 (prevayler-jr! + 0 file)]
+      @p2 => 42
+      (close! p2))
+    (recover + 0 file) => 42))
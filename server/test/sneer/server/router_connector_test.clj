@@ -12,6 +12,7 @@
 (def t1 {"id" 1 "author" :A :payload "1"})
 (def t2 {"id" 2 "author" :A :payload "2"})
 (def t3 {"id" 3 "author" :A :payload "3"})
+(def tC {"id" 42 "author" :C :payload "42"})
 
 (tabular "Router Connector"
   (fact ?fact
@@ -50,6 +51,11 @@
   [           {:ack   1 :to   :A :for :B} {:send t1 :to :B}]
   []
 
+  "A client that stops pinging goes offline"
+  (concat [{:from :B}] (repeat 121 :resend) [{:send t1 :from :A :to :B}])
+  [{:ack 1 :to :A :for :B}]
+  [:B]
+
   "A tuple is sent when client comes online (sends a ping)"
   [{:send t1 :from :A :to  :B} {:from :B} :resend]
   [{:ack   1 :to   :A :for :B}            {:send t1 :to :B}]
@@ -65,6 +71,16 @@
   [{:ack   1 :to   :A :for :B} {:ack   2 :to   :A :for :B}            {:send t1 :to :B}                {:send t2      :to   :B}]
   [:B]
 
+  "A tuple whose predecessor is missing is dropped until the predecessor arrives"
+  [{:send t1 :from :A :to  :B} {:send t3 :from :A :to :B :prev [:A 2]} {:send t2 :from :A :to :B :prev [:A 1]} {:send t3 :from :A :to :B :prev [:A 2]}]
+  [{:ack   1 :to   :A :for :B}                                          {:ack   2 :to   :A :for :B}              {:nak   3 :to   :A :for :B}]
+  [:B]
+
+  "A sender that went offline is not held to the order of what it sent before"
+  (concat [{:send t1 :from :A :to :B} {:from :A}] (repeat 121 :resend) [{:send t3 :from :A :to :B :prev [:A 2]}])
+  [{:ack 1 :to :A :for :B} {:ack 3 :to :A :for :B}]
+  [:B]
+
   "Duplicate tuple sends are ignored."
   [{:send t1 :from :A :to  :B} {:send t1 :from :A :to  :B} {:from :B} :resend {:ack :A :id 1 :from :B} :resend]
   [{:ack   1 :to   :A :for :B} {:ack   1 :to   :A :for :B}            {:send t1 :to :B}                #_"Was not enqueued"]
@@ -75,6 +91,11 @@
   [{:ack   1 :to   :A :for :B}            {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} {:send t1 :to :B} #_"Client offline"]
   [:B :B]
 
+  "A tuple B does not ack gives way to another sender's"
+  [{:send t1 :from :A :to  :B} {:send tC :from :C :to  :B} {:from :B} :resend           :resend           :resend]
+  [{:ack   1 :to   :A :for :B} {:ack  42 :to   :C :for :B}            {:send t1 :to :B} {:send t1 :to :B} {:send tC :to :B}]
+  [:B]
+
   "A is notified when its send queue for B is empty."
   [
    ; packets from :A to :B
@@ -98,4 +119,44 @@
    :resend
   ]
   [{:ack 1, :for :B, :to :A} {:ack 2, :for :B, :to :A} {:for :B, :nak 3, :to :A} {:cts :B, :to :A}]
-  [:B])
\ No newline at end of file
+  [:B])
+(defn- take-until [ch pred]
+  (loop [taken []]
+    (let [packet (<!!? ch)]
+      (if (or (= packet :timeout) (pred packet))
+        (conj taken packet)
+        (recur (conj taken packet))))))
+
+(fact "A :cts reaches a sender handled by another shard"
+  (let [packets-in (chan)
+        packets-out (chan 100)
+        tC1 {"id" 1 "author" :A}
+        tC2 {"id" 2 "author" :A}
+        tC3 {"id" 3 "author" :A}]
+    (start-transient-connector 2 packets-in packets-out #(async/timeout 50) (chan 100) 2) ; :A and :C are in different shards.
+    (doseq [t [tC1 tC2 tC3]]
+      (>!!? packets-in {:send t :from :A :to :C}))
+    (>!!? packets-in {:from :C})
+    (last (take-until packets-out #(= (:send %) tC1))) => {:send tC1 :to :C}
+    (>!!? packets-in {:ack :A :id 1 :from :C})
+    (last (take-until packets-out #(= (:send %) tC2))) => {:send tC2 :to :C}
+    (>!!? packets-in {:ack :A :id 2 :from :C})
+    (last (take-until packets-out :cts)) => {:cts :C :to :A}
+    (close! packets-in)))
+
+(fact "Journals are resharded when the number of shards changes"
+  (let [dir (doto (java.io.File/createTempFile "connector-" "") .delete .mkdir)
+        file (java.io.File. dir "server.jr")
+        run (fn [shard-count packets replies]
+              (let [packets-in (chan)
+                    packets-out (chan 100)
+                    connector (start-connector file packets-in packets-out (chan 100) shard-count)]
+                (doseq [packet packets]
+                  (>!!? packets-in packet))
+                (let [received (vec (repeatedly replies #(<!!? packets-out (* 3 resend-timeout-millis))))]
+                  (close! packets-in)
+                  (<!!? connector (* 3 resend-timeout-millis))
+                  received)))]
+    (run 1 [{:send t1 :from :A :to :C}] 1) => [{:ack 1 :for :C :to :A}]
+    (run 2 [{:from :C}] 1) => [{:send t1 :to :C}]
+    (map #(sneer.server.prevalence/exists? (java.io.File. dir (str "server.jr." %))) ["0-of-1" "0-of-2" "1-of-2"]) => [false true true]))
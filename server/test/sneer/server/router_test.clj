@@ -1,6 +1,6 @@
 (ns sneer.server.router-test
   (:require
-   [midje.sweet :refer [fact facts]]
+   [midje.sweet :refer [fact facts truthy falsey]]
    [sneer.test-util :refer :all]
    [sneer.server.router :refer :all]))
 
@@ -96,3 +96,46 @@
      (peek :A) => {:cts :B}
      (pop! :B)
      (peek :C) => {:cts :B})))
+
+(fact "The turn can pass to the next sender without popping"
+  (let [router (-> (create-router 3)
+                   (enqueue :A :B "AB1")
+                   (enqueue :C :B "CB1"))]
+    (peek-packet-for router :B) => {:send "AB1"}
+    (-> router (rotate-turn :B) (peek-packet-for :B)) => {:send "CB1"}
+    (-> router (rotate-turn :B) (rotate-turn :B) (peek-packet-for :B)) => {:send "AB1"}
+    (-> (create-router 3) (enqueue :A :B "AB1") (rotate-turn :B) (peek-packet-for :B)) => {:send "AB1"}))
+
+(fact "Routers are split by receiver and merged back"
+  (let [router (-> (create-router 3)
+                   (enqueue :A :B "to B")
+                   (enqueue :A :C "to C")
+                   (enqueue-cts :A :D))
+        shard-of {:A 0 :B 0 :C 1 :D 1}
+        [r0 r1 :as shards] (split-router router 2 shard-of)]
+    (peek-packet-for r0 :B) => {:send "to B"}
+    (peek-packet-for r1 :C) => {:send "to C"}
+    (peek-packet-for r1 :B) => nil
+    (cts-for r0 :A) => [:D]
+    (merge-routers shards) => router
+    (-> (merge-routers [r0 (enqueue-cts r1 :A :C)]) (cts-for :A)) => [:D :C]
+    (-> r0 (forget-cts :A) (peek-packet-for :A)) => nil
+    (-> (enqueue-cts r0 :A :C) (forget-cts :A 1) (cts-for :A)) => [:C]))
+
+(fact "Routers saved before senders had a ring are upgraded"
+  (let [old {:max-queue-size 3
+             :B {:qs-by-sender {:A (into clojure.lang.PersistentQueue/EMPTY ["A1" "A2"])
+                                :C (into clojure.lang.PersistentQueue/EMPTY ["C1"])}
+                 :turn :C}}]
+    (peek-packet-for old :B) => {:send "C1"}
+    (duplicated-tuple? old :A :B "A2") => truthy
+    (let [popped (pop-packet-for old :B)]
+      (peek-packet-for popped :B) => {:send "A1"}
+      (duplicated-tuple? popped :A :B "A2") => truthy
+      (duplicated-tuple? popped :A :B "A3") => falsey)))
+
+(fact "Senders take turns however many there are"
+  (let [senders (range 1000)
+        router (reduce #(enqueue %1 %2 :R [%2 :tuple]) (create-router 3) senders)
+        popped (take 1000 (iterate #(pop-packet-for % :R) router))]
+    (map #(:send (peek-packet-for % :R)) popped) => (map #(vector % :tuple) senders)))